@@ -114,6 +114,38 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
      */
     static final int NCPU = Runtime.getRuntime().availableProcessors();
 
+    /**
+     * Sampling mask for counter cell shrink checks. Roughly one in
+     * (CELLS_SHRINK_SAMPLE + 1) cell-path updates of addCount looks
+     * at the contention recorded since the previous check.
+     * 采样掩码：大约每1024次走cells路径的addCount，会有一次检查cells是否可以缩容
+     */
+    private static final int CELLS_SHRINK_SAMPLE = (1 << 10) - 1;
+
+    /**
+     * Value of a counter cell that has been folded back into
+     * baseCount by a shrink. Writers that observe it must rehash
+     * against the current counterCells instead of CASing the cell.
+     * 被缩容淘汰的cell的值，线程看到这个值说明cell已经失效，需要重新读取counterCells
+     */
+    static final long RETIRED_CELL = Long.MIN_VALUE;
+
+    /**
+     * Bounds on the number of delta segments used for replication. A
+     * key belongs to segment (spread hash & (segments - 1)), i.e. to
+     * the bins whose index has those low bits, so a segment keeps its
+     * keys across resizes: a split bin keeps its low bits. The count
+     * follows the table size, about 2^DELTA_BINS_SHIFT bins per
+     * segment, so that one dirty key re-exports a handful of entries
+     * however large the map is.
+     * 增量复制时的分段数量，按hash低位分段，扩容时桶位拆分不会改变低位。
+     * 分段数随table长度增长（大约每 2^DELTA_BINS_SHIFT 个桶位一个分段），
+     * 否则map很大时，一个脏key就要重新导出 size/分段数 个entry。
+     */
+    static final int MIN_DELTA_SEGMENTS = 1 << 10;
+    static final int MAX_DELTA_SEGMENTS = 1 << 24;
+    static final int DELTA_BINS_SHIFT = 3;
+
     /** For serialization compatibility.
      */
     private static final ObjectStreamField[] serialPersistentFields = {
@@ -295,6 +327,53 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
         U.putObjectVolatile(tab, ((long)i << ASHIFT) + ABASE, v);
     }
 
+    /*
+     * Single-node bins. A bin whose head is a plain Node with no next
+     * node is updated without locking: putVal and replaceNode replace
+     * the whole head with casTabAt instead of writing its val. Such
+     * heads are therefore treated as immutable. Locked writers that
+     * would change one in place either replace it with casTabAt too
+     * (retrying if the lock-free path won), or, when they run a user
+     * function that must be applied at most once, first swap it for a
+     * PinnedNode copy that the lock-free path leaves alone, and swap
+     * it back when done (pinBin/unpinBin).
+     * 单节点桶位：头结点是普通Node并且没有后继节点时，putVal/replaceNode替换value
+     * 不再加锁，而是cas整个桶位头结点。所以这种头结点是不可变的，加锁的写操作要么也用cas替换它，
+     * 要么先把它换成PinnedNode（无锁路径不会碰PinnedNode），写完再换回来。
+     */
+
+    /**
+     * Returns true if f is a bin head the lock-free path may replace.
+     */
+    static final boolean isSoloBin(Node<?,?> f) {
+        return f.next == null && f.getClass() == Node.class;
+    }
+
+    /**
+     * Pins a single-node bin before a locked write. Returns the head
+     * to lock, or null if the bin changed and the caller must retry.
+     */
+    static final <K,V> Node<K,V> pinBin(Node<K,V>[] tab, int i, Node<K,V> f) {
+        if (!isSoloBin(f))
+            return f;
+        Node<K,V> p = new PinnedNode<K,V>(f.hash, f.key, f.val);
+        return casTabAt(tab, i, f, p) ? p : null;
+    }
+
+    /**
+     * Undoes pinBin once the locked write is done, if the pinned head
+     * is still the head of its bin. The write may have appended nodes
+     * behind it, so the replacement keeps f's next; either way no
+     * PinnedNode outlives the lock, and transfer never copies one.
+     * Called while holding the lock on f, also when the write threw.
+     * 写的过程中可能在PinnedNode后面追加了节点，换回普通Node时要带上next，
+     * 否则PinnedNode会一直留在桶位上，扩容时还可能被当成lastRun原样搬到新表
+     */
+    static final <K,V> void unpinBin(Node<K,V>[] tab, int i, Node<K,V> f) {
+        if (f instanceof PinnedNode && tabAt(tab, i) == f)
+            setTabAt(tab, i, new Node<K,V>(f.hash, f.key, f.val, f.next));
+    }
+
     /* ---------------- Fields -------------- */
 
     /**
@@ -358,6 +437,21 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
      */
     private transient volatile CounterCell[] counterCells;
 
+    /**
+     * Write-behind journal told about every mutated key; null if the
+     * map is not persisted. See MapJournal.
+     * 持久化日志，每次修改之后把key交给journal，由后台线程批量写盘。没有持久化时为null
+     */
+    private transient volatile MapJournal<K,V> journal;
+
+    /**
+     * Dirty bitmap for delta export, one bit per delta segment, so the
+     * segment count is its length * 64; null until the first
+     * exportDelta. See MIN_DELTA_SEGMENTS.
+     * 增量导出用的脏位图，每个segment一位，分段数 = 长度 * 64，第一次exportDelta之前为null
+     */
+    private transient volatile AtomicLongArray dirtySegments;
+
     // views
     private transient KeySetView<K,V> keySet;
     private transient ValuesView<K,V> values;
@@ -616,7 +710,8 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
             //n 表示散列表数组的长度
             //i 表示key通过寻址计算后，得到的桶位下标
             //fh 表示桶位头结点的hash值
-            Node<K,V> f; int n, i, fh;
+            //fk 表示桶位头结点的key
+            Node<K,V> f; int n, i, fh; K fk;
 
             //CASE1：成立，表示当前map中的table尚未初始化..
             if (tab == null || (n = tab.length) == 0)
@@ -641,6 +736,19 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
                 //学完扩容后再来看。
                 tab = helpTransfer(tab, f);
 
+            //CASE FAST：桶位只有一个普通节点，并且就是要替换的key，不加锁，cas替换整个头结点即可
+            else if (fh == hash && isSoloBin(f) &&
+                     ((fk = f.key) == key || key.equals(fk))) {
+                V fv = f.val;
+                if (onlyIfAbsent)
+                    return fv;
+                if (casTabAt(tab, i, f, new Node<K,V>(hash, fk, value, null))) {
+                    recordChange(key, hash);
+                    return fv;
+                }
+                //cas失败，说明桶位被其它线程修改了，自旋重试
+            }
+
             //CASE4：当前桶位 可能是 链表 也可能是 红黑树代理结点TreeBin
             else {
                 //当插入key存在时，会将旧值赋值给oldVal，返回给put方法调用处..
@@ -671,8 +779,16 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
                                     //将当前循环的元素的 值 赋值给oldVal
                                     oldVal = e.val;
 
-                                    if (!onlyIfAbsent)
-                                        e.val = value;
+                                    if (!onlyIfAbsent) {
+                                        //单节点桶位不能原地修改，cas替换头结点，失败的话 binCount置0 自旋重试
+                                        if (e == f && isSoloBin(f)) {
+                                            if (!casTabAt(tab, i, f,
+                                                          new Node<K,V>(hash, ek, value, null)))
+                                                binCount = 0;
+                                        }
+                                        else
+                                            e.val = value;
+                                    }
                                     break;
                                 }
                                 //当前元素 与 插入元素的key不一致 时，会走下面程序。
@@ -681,8 +797,17 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
 
                                 Node<K,V> pred = e;
                                 if ((e = e.next) == null) {
-                                    pred.next = new Node<K,V>(hash, key,
-                                                              value, null);
+                                    //单节点桶位不能原地追加，cas替换为 头结点副本 + 新节点
+                                    if (pred == f && isSoloBin(f)) {
+                                        if (!casTabAt(tab, i, f,
+                                                      new Node<K,V>(fh, f.key, f.val,
+                                                                    new Node<K,V>(hash, key,
+                                                                                  value, null))))
+                                            binCount = 0;
+                                    }
+                                    else
+                                        pred.next = new Node<K,V>(hash, key,
+                                                                  value, null);
                                     break;
                                 }
                             }
@@ -714,8 +839,11 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
                         //调用转化链表为红黑树的方法
                         treeifyBin(tab, i);
                     //说明当前线程插入的数据key，与原有k-v发生冲突，需要将原数据v返回给调用者。
-                    if (oldVal != null)
+                    if (oldVal != null) {
+                        if (!onlyIfAbsent)
+                            recordChange(key, hash);
                         return oldVal;
+                    }
                     break;
                 }
             }
@@ -724,6 +852,7 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
         //1.统计当前table一共有多少数据
         //2.判断是否达到扩容阈值标准，触发扩容。
         addCount(1L, binCount);
+        recordChange(key, hash);
 
         return null;
     }
@@ -768,7 +897,8 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
             //n表示当前table数组长度
             //i表示hash命中桶位下标
             //fh表示桶位头结点 hash
-            Node<K,V> f; int n, i, fh;
+            //fk表示桶位头结点 key
+            Node<K,V> f; int n, i, fh; Object fk;
 
             //CASE1：
             //条件一：tab == null  true->表示当前map.table尚未初始化..  false->已经初始化
@@ -784,6 +914,19 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
             else if ((fh = f.hash) == MOVED)
                 tab = helpTransfer(tab, f);
 
+            //CASE FAST：桶位只有一个普通节点，并且是一次替换操作，不加锁，cas替换整个头结点
+            else if (value != null && fh == hash && isSoloBin(f) &&
+                     ((fk = f.key) == key || key.equals(fk))) {
+                V fv = f.val;
+                if (cv != null && cv != fv && !cv.equals(fv))
+                    return null;
+                if (casTabAt(tab, i, f, new Node<K,V>(hash, f.key, value, null))) {
+                    recordChange(key, hash);
+                    return fv;
+                }
+                //cas失败，说明桶位被其它线程修改了，自旋重试
+            }
+
             //CASE3:
             //前置条件CASE2 ~ CASE3：当前桶位不是null
             //当前桶位 可能是 "链表" 也可能 是  "红黑树" TreeBin
@@ -825,8 +968,16 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
                                         //将当前节点的值 赋值给 oldVal 后续返回会用到
                                         oldVal = ev;
 
+                                        //条件成立：单节点桶位，不能原地修改，cas替换或者清空桶位，失败的话自旋重试
+                                        if (e == f && isSoloBin(f)) {
+                                            if (!casTabAt(tab, i, f, (value == null) ? null :
+                                                          new Node<K,V>(hash, f.key, value, null))) {
+                                                validated = false;
+                                                oldVal = null;
+                                            }
+                                        }
                                         //条件成立：说明当前是一个替换操作
-                                        if (value != null)
+                                        else if (value != null)
                                             //直接替换
                                             e.val = value;
                                         //条件成立：说明当前节点非头结点
@@ -894,6 +1045,7 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
                         //替换的值 为null，说明当前是一次删除操作，oldVal ！=null 成立，说明删除成功，更新当前元素个数计数器。
                         if (value == null)
                             addCount(-1L, -1);
+                        recordChange(key, hash);
                         return oldVal;
                     }
                     break;
@@ -907,6 +1059,15 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
      * Removes all of the mappings from this map.
      */
     public void clear() {
+        MapJournal<K,V> j; AtomicLongArray d;
+        //先记录clear，之后的修改在journal中一定排在clear的后面
+        if ((j = journal) != null)
+            j.cleared();
+        //所有segment都可能被清空，全部标记为脏
+        if ((d = dirtySegments) != null) {
+            for (int w = 0; w < d.length(); ++w)
+                d.set(w, -1L);
+        }
         long delta = 0L; // negative number of deletions
         int i = 0;
         Node<K,V>[] tab = table;
@@ -925,11 +1086,16 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
                         Node<K,V> p = (fh >= 0 ? f :
                                        (f instanceof TreeBin) ?
                                        ((TreeBin<K,V>)f).first : null);
+                        long c = 0L;
                         while (p != null) {
-                            --delta;
+                            --c;
                             p = p.next;
                         }
-                        setTabAt(tab, i++, null);
+                        // single-node heads may be swapped without the lock
+                        if (casTabAt(tab, i, f, null)) {
+                            delta += c;
+                            ++i;
+                        }
                     }
                 }
             }
@@ -938,6 +1104,171 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
             addCount(delta, -1);
     }
 
+    /**
+     * Records that the mapping for key (with spread hash h) changed:
+     * marks its delta segment dirty and tells the journal, if any.
+     * Called after the change is visible, so a later read of the key
+     * by either sees it or a newer value.
+     */
+    private void recordChange(Object key, int h) {
+        AtomicLongArray d; MapJournal<K,V> j;
+        if ((d = dirtySegments) != null)
+            markDirty(d, h & ((d.length() << 6) - 1));
+        if ((j = journal) != null)
+            j.changed(key);
+    }
+
+    /**
+     * Installs or removes (if null) the write-behind journal.
+     */
+    final void setJournal(MapJournal<K,V> j) {
+        journal = j;
+    }
+
+    /* ---------------- Delta export -------------- */
+
+    /**
+     * Receives the segments changed since the previous export.
+     */
+    public interface DeltaSink<K,V> {
+        /**
+         * Starts a changed segment. The entries that follow, up to the
+         * next call, replace everything the receiver holds whose key
+         * falls in this segment, i.e. whose spread hash has
+         * (hash & (segments - 1)) == segment. The segment count is the
+         * same for all segments of one export, but grows with the map
+         * between exports.
+         */
+        void segment(int segment, int segments);
+
+        /** An entry of the current segment. */
+        void entry(K key, V value);
+    }
+
+    private static void markDirty(AtomicLongArray d, int seg) {
+        int w = seg >>> 6; long bit = 1L << seg, b;
+        //已经是脏的就不再写，避免热点key反复cas同一个位图word
+        while (((b = d.get(w)) & bit) == 0L && !d.compareAndSet(w, b, b | bit))
+            ;
+    }
+
+    /**
+     * Returns the number of delta segments for a table of length n.
+     */
+    private static int deltaSegmentsFor(int n) {
+        int s = n >>> DELTA_BINS_SHIFT;
+        return (s <= MIN_DELTA_SEGMENTS) ? MIN_DELTA_SEGMENTS :
+            (s >= MAX_DELTA_SEGMENTS) ? MAX_DELTA_SEGMENTS : s;
+    }
+
+    /**
+     * Streams every segment changed since the previous call to sink,
+     * and starts a new checkpoint. The first call turns change
+     * tracking on and exports all segments, as a full sync. A segment
+     * changed while it is being exported is sent again next time.
+     *
+     * <p>When the table has grown past the current segment count, the
+     * count is raised and that export is a full sync: marks made on
+     * the old bitmap by in-flight writers could not be carried over
+     * reliably. The table only doubles after that many insertions, so
+     * the extra traffic stays proportional to the churn.
+     *
+     * @param sink receiver of the changed segments
+     * @return the number of segments exported
+     */
+    public int exportDelta(DeltaSink<? super K, ? super V> sink) {
+        Node<K,V>[] tab = table;
+        int want = deltaSegmentsFor((tab == null) ? 0 : tab.length);
+        AtomicLongArray d;
+        if ((d = dirtySegments) == null || (d.length() << 6) < want) {
+            synchronized (this) {
+                if ((d = dirtySegments) == null || (d.length() << 6) < want) {
+                    //首次导出，或者table扩容后分段太少：换成更多的分段，并且全量导出一次。
+                    //正在修改的线程可能还会标记到旧位图上，所以不能只把旧位图拆分过来
+                    AtomicLongArray all = new AtomicLongArray(want >>> 6);
+                    for (int w = 0; w < all.length(); ++w)
+                        all.set(w, -1L);
+                    dirtySegments = d = all;
+                }
+            }
+        }
+        int segments = d.length() << 6;
+        int count = 0;
+        for (int w = 0; w < d.length(); ++w) {
+            //先清零再读桶位，导出期间的新修改会重新置位，下一次还会被导出
+            long bits = d.getAndSet(w, 0L);
+            while (bits != 0L) {
+                int seg = (w << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1L;
+                sink.segment(seg, segments);
+                exportSegment(table, seg, segments, sink);
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Sends the entries of segment seg (out of segments) found in tab.
+     */
+    private static <K,V> void exportSegment(Node<K,V>[] tab, int seg, int segments,
+                                            DeltaSink<? super K, ? super V> sink) {
+        int n;
+        if (tab == null || (n = tab.length) == 0)
+            return;
+        //table长度不小于分段数时，segment对应 i = seg, seg + S, seg + 2S ... 这些桶位
+        //table长度较小时，segment对应一个桶位，桶位里还有其它segment的数据，需要按hash过滤
+        for (int i = seg & (n - 1); i < n; i += segments)
+            exportBin(tab, i, seg, segments, sink);
+    }
+
+    /**
+     * Sends the entries of bin i of tab that belong to segment seg.
+     * A forwarded bin was split into bins i and i + n of the next table.
+     */
+    private static <K,V> void exportBin(Node<K,V>[] tab, int i, int seg, int segments,
+                                        DeltaSink<? super K, ? super V> sink) {
+        Node<K,V> f;
+        if ((f = tabAt(tab, i)) == null)
+            return;
+        if (f instanceof ForwardingNode) {
+            Node<K,V>[] nt = ((ForwardingNode<K,V>)f).nextTable;
+            exportBin(nt, i, seg, segments, sink);
+            exportBin(nt, i + tab.length, seg, segments, sink);
+            return;
+        }
+        Node<K,V> e = (f instanceof TreeBin) ? ((TreeBin<K,V>)f).first :
+            (f.hash >= 0) ? f : null;
+        for (V v; e != null; e = e.next) {
+            if ((e.hash & (segments - 1)) == seg && (v = e.val) != null)
+                sink.entry(e.key, v);
+        }
+    }
+
+    /**
+     * Standby side of exportDelta: makes the mappings of segment seg
+     * (out of segments, as passed to DeltaSink.segment) equal to
+     * entries, which must only hold keys of that segment.
+     */
+    public void applyDeltaSegment(int seg, int segments,
+                                  Map<? extends K, ? extends V> entries) {
+        if (segments <= 0 || (segments & (segments - 1)) != 0 ||
+            seg < 0 || seg >= segments)
+            throw new IllegalArgumentException();
+        final Map<? extends K, ? extends V> keep = entries;
+        final ArrayList<K> stale = new ArrayList<K>();
+        exportSegment(table, seg, segments, new DeltaSink<K,V>() {
+            public void segment(int s, int ss) { }
+            public void entry(K k, V v) {
+                if (!keep.containsKey(k))
+                    stale.add(k);
+            }
+        });
+        for (K k : stale)
+            remove(k);
+        putAll(entries);
+    }
+
     /**
      * Returns a {@link Set} view of the keys contained in this map.
      * The set is backed by the map, so changes to the map are
@@ -1400,41 +1731,49 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
             else if ((fh = f.hash) == MOVED)
                 tab = helpTransfer(tab, f);
             else {
+                //单节点桶位先换成PinnedNode，保证下面的函数只会被调用一次
+                if ((f = pinBin(tab, i, f)) == null)
+                    continue;
                 boolean added = false;
                 synchronized (f) {
-                    if (tabAt(tab, i) == f) {
-                        if (fh >= 0) {
-                            binCount = 1;
-                            for (Node<K,V> e = f;; ++binCount) {
-                                K ek; V ev;
-                                if (e.hash == h &&
-                                    ((ek = e.key) == key ||
-                                     (ek != null && key.equals(ek)))) {
-                                    val = e.val;
-                                    break;
-                                }
-                                Node<K,V> pred = e;
-                                if ((e = e.next) == null) {
-                                    if ((val = mappingFunction.apply(key)) != null) {
-                                        added = true;
-                                        pred.next = new Node<K,V>(h, key, val, null);
+                    try {
+                        if (tabAt(tab, i) == f) {
+                            if (fh >= 0) {
+                                binCount = 1;
+                                for (Node<K,V> e = f;; ++binCount) {
+                                    K ek; V ev;
+                                    if (e.hash == h &&
+                                        ((ek = e.key) == key ||
+                                         (ek != null && key.equals(ek)))) {
+                                        val = e.val;
+                                        break;
+                                    }
+                                    Node<K,V> pred = e;
+                                    if ((e = e.next) == null) {
+                                        if ((val = mappingFunction.apply(key)) != null) {
+                                            added = true;
+                                            pred.next = new Node<K,V>(h, key, val, null);
+                                        }
+                                        break;
                                     }
-                                    break;
                                 }
                             }
-                        }
-                        else if (f instanceof TreeBin) {
-                            binCount = 2;
-                            TreeBin<K,V> t = (TreeBin<K,V>)f;
-                            TreeNode<K,V> r, p;
-                            if ((r = t.root) != null &&
-                                (p = r.findTreeNode(h, key, null)) != null)
-                                val = p.val;
-                            else if ((val = mappingFunction.apply(key)) != null) {
-                                added = true;
-                                t.putTreeVal(h, key, val);
+                            else if (f instanceof TreeBin) {
+                                binCount = 2;
+                                TreeBin<K,V> t = (TreeBin<K,V>)f;
+                                TreeNode<K,V> r, p;
+                                if ((r = t.root) != null &&
+                                    (p = r.findTreeNode(h, key, null)) != null)
+                                    val = p.val;
+                                else if ((val = mappingFunction.apply(key)) != null) {
+                                    added = true;
+                                    t.putTreeVal(h, key, val);
+                                }
                             }
                         }
+                    } finally {
+                        //函数抛异常也要换回来
+                        unpinBin(tab, i, f);
                     }
                 }
                 if (binCount != 0) {
@@ -1446,8 +1785,10 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
                 }
             }
         }
-        if (val != null)
+        if (val != null) {
             addCount(1L, binCount);
+            recordChange(key, h);
+        }
         return val;
     }
 
@@ -1487,49 +1828,57 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
             else if ((fh = f.hash) == MOVED)
                 tab = helpTransfer(tab, f);
             else {
+                //单节点桶位先换成PinnedNode，保证下面的函数只会被调用一次
+                if ((f = pinBin(tab, i, f)) == null)
+                    continue;
                 synchronized (f) {
-                    if (tabAt(tab, i) == f) {
-                        if (fh >= 0) {
-                            binCount = 1;
-                            for (Node<K,V> e = f, pred = null;; ++binCount) {
-                                K ek;
-                                if (e.hash == h &&
-                                    ((ek = e.key) == key ||
-                                     (ek != null && key.equals(ek)))) {
-                                    val = remappingFunction.apply(key, e.val);
+                    try {
+                        if (tabAt(tab, i) == f) {
+                            if (fh >= 0) {
+                                binCount = 1;
+                                for (Node<K,V> e = f, pred = null;; ++binCount) {
+                                    K ek;
+                                    if (e.hash == h &&
+                                        ((ek = e.key) == key ||
+                                         (ek != null && key.equals(ek)))) {
+                                        val = remappingFunction.apply(key, e.val);
+                                        if (val != null)
+                                            e.val = val;
+                                        else {
+                                            delta = -1;
+                                            Node<K,V> en = e.next;
+                                            if (pred != null)
+                                                pred.next = en;
+                                            else
+                                                setTabAt(tab, i, en);
+                                        }
+                                        break;
+                                    }
+                                    pred = e;
+                                    if ((e = e.next) == null)
+                                        break;
+                                }
+                            }
+                            else if (f instanceof TreeBin) {
+                                binCount = 2;
+                                TreeBin<K,V> t = (TreeBin<K,V>)f;
+                                TreeNode<K,V> r, p;
+                                if ((r = t.root) != null &&
+                                    (p = r.findTreeNode(h, key, null)) != null) {
+                                    val = remappingFunction.apply(key, p.val);
                                     if (val != null)
-                                        e.val = val;
+                                        p.val = val;
                                     else {
                                         delta = -1;
-                                        Node<K,V> en = e.next;
-                                        if (pred != null)
-                                            pred.next = en;
-                                        else
-                                            setTabAt(tab, i, en);
+                                        if (t.removeTreeNode(p))
+                                            setTabAt(tab, i, untreeify(t.first));
                                     }
-                                    break;
-                                }
-                                pred = e;
-                                if ((e = e.next) == null)
-                                    break;
-                            }
-                        }
-                        else if (f instanceof TreeBin) {
-                            binCount = 2;
-                            TreeBin<K,V> t = (TreeBin<K,V>)f;
-                            TreeNode<K,V> r, p;
-                            if ((r = t.root) != null &&
-                                (p = r.findTreeNode(h, key, null)) != null) {
-                                val = remappingFunction.apply(key, p.val);
-                                if (val != null)
-                                    p.val = val;
-                                else {
-                                    delta = -1;
-                                    if (t.removeTreeNode(p))
-                                        setTabAt(tab, i, untreeify(t.first));
                                 }
                             }
                         }
+                    } finally {
+                        //函数抛异常也要换回来
+                        unpinBin(tab, i, f);
                     }
                 }
                 if (binCount != 0)
@@ -1538,6 +1887,8 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
         }
         if (delta != 0)
             addCount((long)delta, binCount);
+        if (delta != 0 || val != null)
+            recordChange(key, h);
         return val;
     }
 
@@ -1595,64 +1946,72 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
             else if ((fh = f.hash) == MOVED)
                 tab = helpTransfer(tab, f);
             else {
+                //单节点桶位先换成PinnedNode，保证下面的函数只会被调用一次
+                if ((f = pinBin(tab, i, f)) == null)
+                    continue;
                 synchronized (f) {
-                    if (tabAt(tab, i) == f) {
-                        if (fh >= 0) {
-                            binCount = 1;
-                            for (Node<K,V> e = f, pred = null;; ++binCount) {
-                                K ek;
-                                if (e.hash == h &&
-                                    ((ek = e.key) == key ||
-                                     (ek != null && key.equals(ek)))) {
-                                    val = remappingFunction.apply(key, e.val);
-                                    if (val != null)
-                                        e.val = val;
-                                    else {
-                                        delta = -1;
-                                        Node<K,V> en = e.next;
-                                        if (pred != null)
-                                            pred.next = en;
-                                        else
-                                            setTabAt(tab, i, en);
+                    try {
+                        if (tabAt(tab, i) == f) {
+                            if (fh >= 0) {
+                                binCount = 1;
+                                for (Node<K,V> e = f, pred = null;; ++binCount) {
+                                    K ek;
+                                    if (e.hash == h &&
+                                        ((ek = e.key) == key ||
+                                         (ek != null && key.equals(ek)))) {
+                                        val = remappingFunction.apply(key, e.val);
+                                        if (val != null)
+                                            e.val = val;
+                                        else {
+                                            delta = -1;
+                                            Node<K,V> en = e.next;
+                                            if (pred != null)
+                                                pred.next = en;
+                                            else
+                                                setTabAt(tab, i, en);
+                                        }
+                                        break;
+                                    }
+                                    pred = e;
+                                    if ((e = e.next) == null) {
+                                        val = remappingFunction.apply(key, null);
+                                        if (val != null) {
+                                            delta = 1;
+                                            pred.next =
+                                                new Node<K,V>(h, key, val, null);
+                                        }
+                                        break;
                                     }
-                                    break;
                                 }
-                                pred = e;
-                                if ((e = e.next) == null) {
-                                    val = remappingFunction.apply(key, null);
-                                    if (val != null) {
+                            }
+                            else if (f instanceof TreeBin) {
+                                binCount = 1;
+                                TreeBin<K,V> t = (TreeBin<K,V>)f;
+                                TreeNode<K,V> r, p;
+                                if ((r = t.root) != null)
+                                    p = r.findTreeNode(h, key, null);
+                                else
+                                    p = null;
+                                V pv = (p == null) ? null : p.val;
+                                val = remappingFunction.apply(key, pv);
+                                if (val != null) {
+                                    if (p != null)
+                                        p.val = val;
+                                    else {
                                         delta = 1;
-                                        pred.next =
-                                            new Node<K,V>(h, key, val, null);
+                                        t.putTreeVal(h, key, val);
                                     }
-                                    break;
                                 }
-                            }
-                        }
-                        else if (f instanceof TreeBin) {
-                            binCount = 1;
-                            TreeBin<K,V> t = (TreeBin<K,V>)f;
-                            TreeNode<K,V> r, p;
-                            if ((r = t.root) != null)
-                                p = r.findTreeNode(h, key, null);
-                            else
-                                p = null;
-                            V pv = (p == null) ? null : p.val;
-                            val = remappingFunction.apply(key, pv);
-                            if (val != null) {
-                                if (p != null)
-                                    p.val = val;
-                                else {
-                                    delta = 1;
-                                    t.putTreeVal(h, key, val);
+                                else if (p != null) {
+                                    delta = -1;
+                                    if (t.removeTreeNode(p))
+                                        setTabAt(tab, i, untreeify(t.first));
                                 }
                             }
-                            else if (p != null) {
-                                delta = -1;
-                                if (t.removeTreeNode(p))
-                                    setTabAt(tab, i, untreeify(t.first));
-                            }
                         }
+                    } finally {
+                        //函数抛异常也要换回来
+                        unpinBin(tab, i, f);
                     }
                 }
                 if (binCount != 0) {
@@ -1664,6 +2023,8 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
         }
         if (delta != 0)
             addCount((long)delta, binCount);
+        if (delta != 0 || val != null)
+            recordChange(key, h);
         return val;
     }
 
@@ -1708,60 +2069,68 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
             else if ((fh = f.hash) == MOVED)
                 tab = helpTransfer(tab, f);
             else {
+                //单节点桶位先换成PinnedNode，保证下面的函数只会被调用一次
+                if ((f = pinBin(tab, i, f)) == null)
+                    continue;
                 synchronized (f) {
-                    if (tabAt(tab, i) == f) {
-                        if (fh >= 0) {
-                            binCount = 1;
-                            for (Node<K,V> e = f, pred = null;; ++binCount) {
-                                K ek;
-                                if (e.hash == h &&
-                                    ((ek = e.key) == key ||
-                                     (ek != null && key.equals(ek)))) {
-                                    val = remappingFunction.apply(e.val, value);
-                                    if (val != null)
-                                        e.val = val;
-                                    else {
-                                        delta = -1;
-                                        Node<K,V> en = e.next;
-                                        if (pred != null)
-                                            pred.next = en;
-                                        else
-                                            setTabAt(tab, i, en);
+                    try {
+                        if (tabAt(tab, i) == f) {
+                            if (fh >= 0) {
+                                binCount = 1;
+                                for (Node<K,V> e = f, pred = null;; ++binCount) {
+                                    K ek;
+                                    if (e.hash == h &&
+                                        ((ek = e.key) == key ||
+                                         (ek != null && key.equals(ek)))) {
+                                        val = remappingFunction.apply(e.val, value);
+                                        if (val != null)
+                                            e.val = val;
+                                        else {
+                                            delta = -1;
+                                            Node<K,V> en = e.next;
+                                            if (pred != null)
+                                                pred.next = en;
+                                            else
+                                                setTabAt(tab, i, en);
+                                        }
+                                        break;
+                                    }
+                                    pred = e;
+                                    if ((e = e.next) == null) {
+                                        delta = 1;
+                                        val = value;
+                                        pred.next =
+                                            new Node<K,V>(h, key, val, null);
+                                        break;
                                     }
-                                    break;
-                                }
-                                pred = e;
-                                if ((e = e.next) == null) {
-                                    delta = 1;
-                                    val = value;
-                                    pred.next =
-                                        new Node<K,V>(h, key, val, null);
-                                    break;
                                 }
                             }
-                        }
-                        else if (f instanceof TreeBin) {
-                            binCount = 2;
-                            TreeBin<K,V> t = (TreeBin<K,V>)f;
-                            TreeNode<K,V> r = t.root;
-                            TreeNode<K,V> p = (r == null) ? null :
-                                r.findTreeNode(h, key, null);
-                            val = (p == null) ? value :
-                                remappingFunction.apply(p.val, value);
-                            if (val != null) {
-                                if (p != null)
-                                    p.val = val;
-                                else {
-                                    delta = 1;
-                                    t.putTreeVal(h, key, val);
+                            else if (f instanceof TreeBin) {
+                                binCount = 2;
+                                TreeBin<K,V> t = (TreeBin<K,V>)f;
+                                TreeNode<K,V> r = t.root;
+                                TreeNode<K,V> p = (r == null) ? null :
+                                    r.findTreeNode(h, key, null);
+                                val = (p == null) ? value :
+                                    remappingFunction.apply(p.val, value);
+                                if (val != null) {
+                                    if (p != null)
+                                        p.val = val;
+                                    else {
+                                        delta = 1;
+                                        t.putTreeVal(h, key, val);
+                                    }
+                                }
+                                else if (p != null) {
+                                    delta = -1;
+                                    if (t.removeTreeNode(p))
+                                        setTabAt(tab, i, untreeify(t.first));
                                 }
-                            }
-                            else if (p != null) {
-                                delta = -1;
-                                if (t.removeTreeNode(p))
-                                    setTabAt(tab, i, untreeify(t.first));
                             }
                         }
+                    } finally {
+                        //函数抛异常也要换回来
+                        unpinBin(tab, i, f);
                     }
                 }
                 if (binCount != 0) {
@@ -1773,6 +2142,8 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
         }
         if (delta != 0)
             addCount((long)delta, binCount);
+        if (delta != 0 || val != null)
+            recordChange(key, h);
         return val;
     }
 
@@ -1954,6 +2325,17 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
         }
     }
 
+    /**
+     * A copy of a single-node bin head held while a locked writer runs
+     * a user function on it. Behaves as a plain Node everywhere except
+     * that the lock-free value path skips it.
+     */
+    static final class PinnedNode<K,V> extends Node<K,V> {
+        PinnedNode(int hash, K key, V val) {
+            super(hash, key, val, null);
+        }
+    }
+
     /**
      * A place-holder node used in computeIfAbsent and compute
      */
@@ -2083,15 +2465,21 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
             //条件三：!(uncontended = U.compareAndSwapLong(a, CELLVALUE, v = a.value, v + x)
             //      false->取反得到false，表示当前线程使用cas方式更新当前命中的cell成功
             //      true->取反得到true,表示当前线程使用cas方式更新当前命中的cell失败，需要进入fullAddCount进行重试 或者 扩容 cells。
+            //      命中的cell已经被缩容淘汰(RETIRED_CELL)时，也按失败处理，进入fullAddCount重新读取cells
             if (as == null || (m = as.length - 1) < 0 ||
                 (a = as[ThreadLocalRandom.getProbe() & m]) == null ||
-                !(uncontended = U.compareAndSwapLong(a, CELLVALUE, v = a.value, v + x))
+                !(uncontended = (v = a.value) != RETIRED_CELL &&
+                  U.compareAndSwapLong(a, CELLVALUE, v, v + x))
             ) {
                 fullAddCount(x, uncontended);
                 //考虑到fullAddCount里面的事情比较累，就让当前线程 不参与到 扩容相关的逻辑了，直接返回到调用点。
                 return;
             }
 
+            //采样：竞争平息之后，cells不再需要这么多，尝试缩容，把多余cell的值折叠回baseCount
+            if ((ThreadLocalRandom.nextSecondarySeed() & CELLS_SHRINK_SAMPLE) == 0)
+                tryShrinkCounterCells(as);
+
             if (check <= 1)
                 return;
 
@@ -2457,8 +2845,8 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
 
                             setTabAt(nextTab, i, ln);
                             setTabAt(nextTab, i + n, hn);
-                            setTabAt(tab, i, fwd);
-                            advance = true;
+                            //单节点桶位可能在迁移过程中被无锁路径替换掉，cas失败的话 advance为false，重新迁移该桶位
+                            advance = casTabAt(tab, i, f, fwd);
                         }
                         //条件成立：表示当前桶位是 红黑树 代理结点TreeBin
                         else if (f instanceof TreeBin) {
@@ -2531,21 +2919,82 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
      */
     @sun.misc.Contended static final class CounterCell {
         volatile long value;
+        /**
+         * CAS failures seen on this cell since the last shrink check.
+         * Best-effort plain counter; it lives in the padded line anyway.
+         * 自上次缩容检查以来，在该cell上发生cas失败的次数（非精确统计）
+         */
+        int contended;
         CounterCell(long x) { value = x; }
     }
 
     final long sumCount() {
-        CounterCell[] as = counterCells; CounterCell a;
+        CounterCell[] as = counterCells; CounterCell a; long v;
         long sum = baseCount;
         if (as != null) {
             for (int i = 0; i < as.length; ++i) {
-                if ((a = as[i]) != null)
-                    sum += a.value;
+                //已经淘汰的cell，值已经折叠到baseCount中了
+                if ((a = as[i]) != null && (v = a.value) != RETIRED_CELL)
+                    sum += v;
             }
         }
         return sum;
     }
 
+    /**
+     * Halves counterCells (or drops it entirely when only two cells
+     * remain) if fewer CAS failures than cells were recorded since
+     * the previous check. Dropped cells are retired by swapping in
+     * RETIRED_CELL and their counts are added to baseCount, so a
+     * writer racing with the shrink either lands before the swap or
+     * fails its CAS and retries against the new table.
+     *
+     * @param as the table the caller just updated
+     */
+    private final void tryShrinkCounterCells(CounterCell[] as) {
+        if (cellsBusy != 0 || counterCells != as ||
+            !U.compareAndSwapInt(this, CELLSBUSY, 0, 1))
+            return;
+        try {
+            int n; CounterCell a;
+            if (counterCells != as || (n = as.length) <= 0)
+                return;
+            //统计并清零这段时间内的竞争次数
+            int misses = 0;
+            for (int i = 0; i < n; ++i) {
+                if ((a = as[i]) != null) {
+                    misses += a.contended;
+                    a.contended = 0;
+                }
+            }
+            //平均每个cell不到一次cas失败，说明竞争已经平息
+            if (misses >= n)
+                return;
+            //只剩2个cell时直接退回到只使用baseCount，否则减半，保留低半区的cell
+            int keep = (n > 2) ? n >>> 1 : 0;
+            CounterCell[] rs = null;
+            if (keep > 0) {
+                rs = new CounterCell[keep];
+                for (int i = 0; i < keep; ++i)
+                    rs[i] = as[i];
+            }
+            //先发布新表，拿着旧表的线程在cas到淘汰cell失败后 会发现counterCells != as 从而重新读取
+            counterCells = rs;
+            for (int i = keep; i < n; ++i) {
+                if ((a = as[i]) != null) {
+                    long v, b;
+                    do {} while (!U.compareAndSwapLong(a, CELLVALUE,
+                                                       v = a.value, RETIRED_CELL));
+                    if (v != 0L)
+                        do {} while (!U.compareAndSwapLong(this, BASECOUNT,
+                                                           b = baseCount, b + v));
+                }
+            }
+        } finally {
+            cellsBusy = 0;
+        }
+    }
+
     // See LongAdder version for explanation
     private final void fullAddCount(long x, boolean wasUncontended) {
         int h;
@@ -2582,14 +3031,19 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
                     }
                     collide = false;
                 }
-                else if (!wasUncontended)       // CAS already known to fail
+                else if (!wasUncontended) {     // CAS already known to fail
+                    ++a.contended;              // Record for shrink checks
                     wasUncontended = true;      // Continue after rehash
-                else if (U.compareAndSwapLong(a, CELLVALUE, v = a.value, v + x))
+                }
+                else if ((v = a.value) != RETIRED_CELL &&
+                         U.compareAndSwapLong(a, CELLVALUE, v, v + x))
                     break;
                 else if (counterCells != as || n >= NCPU)
-                    collide = false;            // At max size or stale
-                else if (!collide)
+                    collide = false;            // At max size, stale or retired
+                else if (!collide) {
+                    ++a.contended;
                     collide = true;
+                }
                 else if (cellsBusy == 0 &&
                          U.compareAndSwapInt(this, CELLSBUSY, 0, 1)) {
                     try {
@@ -2661,7 +3115,8 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
                         }
 
 
-                        setTabAt(tab, index, new TreeBin<K,V>(hd));
+                        // skip if a single-node head was swapped meanwhile
+                        casTabAt(tab, index, b, new TreeBin<K,V>(hd));
                     }
                 }
             }
@@ -0,0 +1,392 @@
+package java.util.concurrent;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Write-behind, append-only journal for a {@link ConcurrentHashMap}.
+ *
+ * <p>The map reports each mutated key (from putVal, replaceNode,
+ * clear and the compute methods) through {@link #changed}. That only
+ * marks the key dirty and queues it; a background thread drains the
+ * queue in batches, reads the <em>current</em> mapping of each key and
+ * appends a PUT or REMOVE record to a memory-mapped segment file,
+ * forcing the segment once per batch. Because the value is read after
+ * the mutation, records for one key never go out of order even though
+ * the mutating threads do not coordinate with each other.
+ *
+ * <p>On startup {@link #open} replays all segments in order into the
+ * map before it starts journalling. A torn record at the end of a
+ * segment (bad length or checksum) ends replay of that segment.
+ *
+ * <p>If a batch cannot be written (an I/O error), its keys stay
+ * queued and dirty and are retried every round, and the error is kept
+ * in {@link #failure} until a flush succeeds again; a direct call to
+ * {@link #flush} retries at once and throws if the changes still
+ * cannot be persisted. A key is only dequeued once its record has been
+ * appended. A key or value the Codec cannot encode is dropped instead,
+ * so that it does not hold up the records behind it: the flush writes
+ * the rest and then reports the Codec's exception the same way.
+ *
+ * 写后日志：map修改之后只是把key标记为脏并入队，后台线程批量出队，读取key当前的值，
+ * 追加PUT/REMOVE记录到内存映射的segment文件，每批force一次。因为写盘时读的是最新值，
+ * 所以同一个key的记录不会乱序。启动时按顺序回放所有segment。
+ *
+ * Record layout: int length, int crc32, byte type, int keyLength,
+ * key bytes, value bytes. length covers everything after the crc.
+ */
+public class MapJournal<K,V> implements Closeable {
+
+    /** Encodes keys or values to bytes and back. */
+    public interface Codec<T> {
+        byte[] encode(T t);
+        T decode(byte[] b);
+    }
+
+    static final byte PUT    = 1;
+    static final byte REMOVE = 2;
+    static final byte CLEAR  = 3;
+
+    /** Default segment size: 64MB. */
+    static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+
+    /** Default delay between write-behind batches. */
+    static final long DEFAULT_FLUSH_MILLIS = 10L;
+
+    /** Size of the length and crc fields preceding each record. */
+    private static final int HEADER = 8;
+
+    /** Queue marker for a clear. */
+    private static final Object CLEAR_MARK = new Object();
+
+    private final File dir;
+    private final Codec<K> keys;
+    private final Codec<V> values;
+    private final int segmentSize;
+    private final long flushMillis;
+
+    /** Keys queued since their last write; dedupes the queue. */
+    private final ConcurrentHashMap.KeySetView<Object,Boolean> dirty =
+        ConcurrentHashMap.newKeySet();
+    /** Dirty keys and clear marks in mutation order. */
+    private final ConcurrentLinkedQueue<Object> pending =
+        new ConcurrentLinkedQueue<Object>();
+
+    private ConcurrentHashMap<K,V> map;
+    private Thread flusher;
+    private volatile boolean closed;
+    /** Error of the last failed flush; null once a flush succeeds. */
+    private volatile Throwable failure;
+
+    // segment state, guarded by this
+    private long segmentIndex;
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    /** Records appended to segment since its last successful force. */
+    private boolean unforced;
+
+    public MapJournal(File dir, Codec<K> keys, Codec<V> values) {
+        this(dir, keys, values, DEFAULT_SEGMENT_SIZE, DEFAULT_FLUSH_MILLIS);
+    }
+
+    /**
+     * @param dir directory holding the segment files
+     * @param segmentSize bytes per segment file
+     * @param flushMillis delay between write-behind batches
+     */
+    public MapJournal(File dir, Codec<K> keys, Codec<V> values,
+                      int segmentSize, long flushMillis) {
+        if (dir == null || keys == null || values == null)
+            throw new NullPointerException();
+        if (segmentSize <= HEADER || flushMillis <= 0L)
+            throw new IllegalArgumentException();
+        this.dir = dir;
+        this.keys = keys;
+        this.values = values;
+        this.segmentSize = segmentSize;
+        this.flushMillis = flushMillis;
+    }
+
+    /**
+     * Replays the existing segments into map, then attaches to it and
+     * starts the write-behind thread. New records go to a fresh segment.
+     */
+    public synchronized void open(ConcurrentHashMap<K,V> map) throws IOException {
+        if (this.map != null)
+            throw new IllegalStateException();
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("cannot create " + dir);
+        long last = -1L;
+        for (File f : segments()) {
+            replay(f, map);
+            last = indexOf(f);
+        }
+        segmentIndex = last + 1;
+        this.map = map;
+        map.setJournal(this);
+        Thread t = new Thread(new Runnable() {
+            public void run() { writeBehind(); }
+        }, "MapJournal-" + dir.getName());
+        t.setDaemon(true);
+        flusher = t;
+        t.start();
+    }
+
+    /* ---------------- Map hooks -------------- */
+
+    /**
+     * Called by the map after the mapping for key changed.
+     */
+    void changed(Object key) {
+        if (dirty.add(key))
+            pending.offer(key);
+    }
+
+    /**
+     * Called by the map before it clears its bins.
+     */
+    void cleared() {
+        pending.offer(CLEAR_MARK);
+        //清空脏集合：clear之后再修改的key必须重新入队，排在clear记录后面
+        dirty.clear();
+    }
+
+    /* ---------------- Writing -------------- */
+
+    private void writeBehind() {
+        while (!closed) {
+            try {
+                Thread.sleep(flushMillis);
+                flush();
+            } catch (InterruptedException ignore) {
+                // closing
+            } catch (IOException | RuntimeException e) {
+                //写不进去：key还在队列里，下一轮重试；错误记下来，通过failure()/flush() 暴露出去，
+                //RuntimeException（比如Codec抛的）也不能让后台线程悄悄退出
+                failure = e;
+            }
+        }
+    }
+
+    /**
+     * Returns the error that made the last flush fail, or null if the
+     * journal is keeping up. While it is non-null, changes are not
+     * being persisted and stay queued for the next attempt.
+     *
+     * @return the last unrecovered write error, or null
+     */
+    public Throwable failure() {
+        return failure;
+    }
+
+    /**
+     * Writes every change queued so far and forces the segment.
+     *
+     * @throws IOException if a record cannot be appended or the segment
+     *         cannot be forced; the unwritten changes stay queued
+     * @throws RuntimeException the Codec's exception, after the other
+     *         changes were written, if a record could not be encoded
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized void flush() throws IOException {
+        if (map == null)
+            return;
+        boolean wrote = false;
+        RuntimeException unencodable = null;
+        for (Object o; (o = pending.peek()) != null; ) {
+            if (o == CLEAR_MARK) {
+                append(CLEAR, null, null);
+                pending.poll();
+                wrote = true;
+                continue;
+            }
+            V v = map.get(o);
+            byte[] kb, vb;
+            try {
+                kb = keys.encode((K)o);
+                vb = (v == null) ? null : values.encode(v);
+            } catch (RuntimeException e) {
+                //编码不了的记录不能一直堵在队头：丢掉，先写后面的，最后再报错
+                if (unencodable == null)
+                    unencodable = e;
+                pending.poll();
+                written(o, v);
+                continue;
+            }
+            //append失败的话key还在队头、也还是脏的，下一轮原样重试
+            append((v == null) ? REMOVE : PUT, kb, vb);
+            pending.poll();
+            written(o, v);
+            wrote = true;
+        }
+        if (wrote)
+            unforced = true;
+        //上一次force失败的记录也要重新force，不能因为队列空了就当成已经落盘
+        if (unforced && segment != null) {
+            segment.force();
+            unforced = false;
+        }
+        failure = unencodable;
+        if (unencodable != null)
+            throw unencodable;
+    }
+
+    /**
+     * Clears key's dirty mark after its record (of value v) is dealt
+     * with, queueing it again if the mapping changed since v was read:
+     * such a change found the key still dirty and did not queue it.
+     */
+    private void written(Object key, V v) {
+        dirty.remove(key);
+        //读值和移出脏集合之间的修改不会入队，这里补上；比较引用就够了，值没变就不用再写
+        if (map.get(key) != v)
+            changed(key);
+    }
+
+    private void append(byte type, byte[] kb, byte[] vb) throws IOException {
+        int klen = (kb == null) ? 0 : kb.length;
+        int vlen = (vb == null) ? 0 : vb.length;
+        int len = 1 + 4 + klen + vlen;
+        if (segment == null || segment.remaining() < HEADER + len + 4)
+            roll(HEADER + len + 4);
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(ByteBuffer.allocate(4).putInt(0, klen).array(), 0, 4);
+        if (kb != null)
+            crc.update(kb, 0, klen);
+        if (vb != null)
+            crc.update(vb, 0, vlen);
+        MappedByteBuffer s = segment;
+        s.putInt(len).putInt((int)crc.getValue()).put(type).putInt(klen);
+        if (kb != null)
+            s.put(kb);
+        if (vb != null)
+            s.put(vb);
+    }
+
+    /**
+     * Forces and closes the current segment and maps the next one,
+     * large enough for at least need bytes plus the end marker.
+     */
+    private void roll(int need) throws IOException {
+        if (segment != null) {
+            segment.force();
+            unforced = false;
+            channel.close();
+        }
+        File f = new File(dir, String.format("segment-%016d.log", segmentIndex++));
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        channel = raf.getChannel();
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0L,
+                              Math.max(segmentSize, need));
+    }
+
+    /**
+     * Stops the write-behind thread, flushes pending changes and
+     * detaches from the map. The journal is only complete if the map
+     * is quiescent: a mutation that races with close may be applied to
+     * the map after the final flush and never be written.
+     */
+    public void close() throws IOException {
+        closed = true;
+        Thread t = flusher;
+        if (t != null) {
+            t.interrupt();
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            ConcurrentHashMap<K,V> m = map;
+            if (m != null) {
+                //先flush再摘下journal，flush失败也要摘下来，不然后台线程已经停了、队列只会越来越长
+                try {
+                    flush();
+                } finally {
+                    m.setJournal(null);
+                }
+                //摘下之前已经读到journal的修改可能又入队了，再写一次
+                flush();
+                map = null;
+            }
+            if (segment != null) {
+                segment.force();
+                channel.close();
+                segment = null;
+            }
+        }
+    }
+
+    /* ---------------- Replay -------------- */
+
+    private File[] segments() {
+        File[] fs = dir.listFiles();
+        if (fs == null)
+            return new File[0];
+        int n = 0;
+        for (File f : fs)
+            if (indexOf(f) >= 0L)
+                fs[n++] = f;
+        fs = Arrays.copyOf(fs, n);
+        Arrays.sort(fs);    // zero-padded index sorts by name
+        return fs;
+    }
+
+    private static long indexOf(File f) {
+        String s = f.getName();
+        if (!s.startsWith("segment-") || !s.endsWith(".log"))
+            return -1L;
+        try {
+            return Long.parseLong(s.substring(8, s.length() - 4));
+        } catch (NumberFormatException e) {
+            return -1L;
+        }
+    }
+
+    private void replay(File f, ConcurrentHashMap<K,V> map) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            FileChannel ch = raf.getChannel();
+            MappedByteBuffer s = ch.map(FileChannel.MapMode.READ_ONLY, 0L, ch.size());
+            while (s.remaining() >= HEADER) {
+                int len = s.getInt(), sum = s.getInt();
+                //长度为0说明后面没有写过，长度不合法说明是写了一半的记录
+                if (len < 5 || len > s.remaining())
+                    break;
+                byte type = s.get();
+                int klen = s.getInt();
+                if (klen < 0 || klen > len - 5)
+                    break;
+                byte[] kb = new byte[klen];
+                byte[] vb = new byte[len - 5 - klen];
+                s.get(kb);
+                s.get(vb);
+                CRC32 crc = new CRC32();
+                crc.update(type);
+                crc.update(ByteBuffer.allocate(4).putInt(0, klen).array(), 0, 4);
+                crc.update(kb, 0, kb.length);
+                crc.update(vb, 0, vb.length);
+                if ((int)crc.getValue() != sum)
+                    break;
+                if (type == CLEAR)
+                    map.clear();
+                else if (type == PUT)
+                    map.put(keys.decode(kb), values.decode(vb));
+                else if (type == REMOVE)
+                    map.remove(keys.decode(kb));
+                else
+                    break;
+            }
+        } finally {
+            raf.close();
+        }
+    }
+}
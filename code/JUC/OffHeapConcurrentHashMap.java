@@ -0,0 +1,286 @@
+package java.util.concurrent;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A map from on-heap keys to byte payloads kept in off-heap memory.
+ * Keys and bin structure live in a {@link ConcurrentHashMap}; each
+ * value is a small on-heap {@code Slot} pointing at a chunk carved out
+ * of a slab of direct memory, so the amount of payload data no longer
+ * shows up in the heap the garbage collector has to trace.
+ *
+ * <p>Reads return a {@link ValueView}, a zero-copy read-only
+ * {@link ByteBuffer} over the chunk. A chunk is only handed out again
+ * once the mapping is gone and every view that was opened on it has
+ * been closed, so views stay valid while held even if the key is
+ * replaced or removed concurrently.
+ *
+ * 值存放在堆外的map：key 和 桶位结构还是在堆上的ConcurrentHashMap中，
+ * value 被拷贝进 直接内存slab 切出来的chunk里，堆上只留一个很小的Slot对象。
+ * 读的时候返回chunk的只读视图，不拷贝。chunk通过引用计数回收：map持有一个引用，每个打开的视图持有一个引用，
+ * 计数归零后chunk才会进入空闲链表被复用。
+ */
+public class OffHeapConcurrentHashMap<K> {
+
+    /** Default slab size: 1MB of direct memory per slab. */
+    static final int DEFAULT_SLAB_SIZE = 1 << 20;
+
+    /** Smallest chunk size; smaller values are rounded up to this. */
+    static final int MIN_CHUNK_SHIFT = 6;
+
+    /** On-heap index: key -> slot describing the off-heap chunk. */
+    private final ConcurrentHashMap<K,Slot> map = new ConcurrentHashMap<K,Slot>();
+
+    /** Size of each slab in bytes, a power of two. */
+    private final int slabSize;
+
+    /**
+     * Free chunks per size class. Class c holds chunks of 1 << c bytes.
+     * 按大小分级的空闲chunk链表，下标c 对应大小为 1 << c 字节的chunk
+     */
+    private final ConcurrentLinkedQueue<ByteBuffer>[] freeChunks;
+
+    /** Slab currently being carved; guarded by slabLock. */
+    private ByteBuffer slab;
+
+    /** Lock for carving new chunks out of slab. */
+    private final Object slabLock = new Object();
+
+    /**
+     * Creates a new, empty map with the default slab size.
+     */
+    public OffHeapConcurrentHashMap() {
+        this(DEFAULT_SLAB_SIZE);
+    }
+
+    /**
+     * Creates a new, empty map with the given slab size.
+     *
+     * @param slabSize the size of each direct-memory slab, rounded up
+     *        to a power of two
+     * @throws IllegalArgumentException if slabSize is not positive
+     */
+    @SuppressWarnings("unchecked")
+    public OffHeapConcurrentHashMap(int slabSize) {
+        if (slabSize <= 0)
+            throw new IllegalArgumentException();
+        int shift = Math.max(sizeClass(slabSize), MIN_CHUNK_SHIFT);
+        this.slabSize = 1 << shift;
+        this.freeChunks = (ConcurrentLinkedQueue<ByteBuffer>[])
+            new ConcurrentLinkedQueue<?>[shift + 1];
+        for (int c = 0; c <= shift; ++c)
+            freeChunks[c] = new ConcurrentLinkedQueue<ByteBuffer>();
+    }
+
+    /* ---------------- Slots -------------- */
+
+    /**
+     * An off-heap value. refs counts the map's own reference plus
+     * every open view; once it drops to zero it never rises again and
+     * the chunk is returned to its free list.
+     */
+    static final class Slot {
+        final ByteBuffer chunk;     // position 0, limit = value length
+        final int sizeClass;        // -1 for values larger than a slab
+        final AtomicInteger refs = new AtomicInteger(1);
+
+        Slot(ByteBuffer chunk, int sizeClass) {
+            this.chunk = chunk;
+            this.sizeClass = sizeClass;
+        }
+
+        /**
+         * Takes a reference unless the slot is already released.
+         */
+        boolean retain() {
+            for (int r;;) {
+                if ((r = refs.get()) <= 0)
+                    return false;
+                if (refs.compareAndSet(r, r + 1))
+                    return true;
+            }
+        }
+    }
+
+    /**
+     * A read-only view of a value. The underlying memory stays valid
+     * until {@link #close} is called; reading the buffer afterwards
+     * may observe another value.
+     */
+    public final class ValueView implements AutoCloseable {
+        private final Slot slot;
+        private final ByteBuffer buffer;
+        private final AtomicInteger closed = new AtomicInteger();
+
+        ValueView(Slot slot) {
+            this.slot = slot;
+            this.buffer = slot.chunk.asReadOnlyBuffer();
+        }
+
+        /**
+         * Returns the value bytes as a read-only buffer positioned at
+         * zero. No copy is made.
+         */
+        public ByteBuffer buffer() {
+            return buffer;
+        }
+
+        /**
+         * Releases this view. Idempotent.
+         */
+        public void close() {
+            if (closed.compareAndSet(0, 1))
+                release(slot);
+        }
+    }
+
+    /* ---------------- Public operations -------------- */
+
+    /**
+     * Returns a view of the value mapped to key, or null if none. The
+     * caller must close the view.
+     *
+     * @throws NullPointerException if the specified key is null
+     */
+    public ValueView get(Object key) {
+        for (Slot s;;) {
+            if ((s = map.get(key)) == null)
+                return null;
+            //引用计数已经归零，说明这个slot刚刚被替换/删除掉了，重新读取map
+            if (s.retain())
+                return new ValueView(s);
+        }
+    }
+
+    /**
+     * Copies value into off-heap memory and maps key to it.
+     *
+     * @return true if a previous value was replaced
+     * @throws NullPointerException if key or value is null
+     */
+    public boolean put(K key, byte[] value) {
+        return put(key, ByteBuffer.wrap(value));
+    }
+
+    /**
+     * Copies the remaining bytes of value into off-heap memory and maps
+     * key to them. The position of value is not changed.
+     *
+     * @return true if a previous value was replaced
+     * @throws NullPointerException if key or value is null
+     */
+    public boolean put(K key, ByteBuffer value) {
+        if (key == null)
+            throw new NullPointerException();
+        Slot old = map.put(key, allocate(value));
+        if (old == null)
+            return false;
+        release(old);
+        return true;
+    }
+
+    /**
+     * Removes the mapping for key. Open views of the value stay valid
+     * until closed.
+     *
+     * @return true if a mapping was removed
+     * @throws NullPointerException if the specified key is null
+     */
+    public boolean remove(Object key) {
+        Slot old = map.remove(key);
+        if (old == null)
+            return false;
+        release(old);
+        return true;
+    }
+
+    public boolean containsKey(Object key) {
+        return map.containsKey(key);
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    /**
+     * Removes all mappings. Slabs are kept for reuse.
+     */
+    public void clear() {
+        for (K k : map.keySet())
+            remove(k);
+    }
+
+    /* ---------------- Chunk allocation -------------- */
+
+    /**
+     * Returns ceil(log2(n)) for n >= 1.
+     */
+    static int sizeClass(int n) {
+        return (n <= 1) ? 0 : 32 - Integer.numberOfLeadingZeros(n - 1);
+    }
+
+    private Slot allocate(ByteBuffer value) {
+        int len = value.remaining();
+        ByteBuffer chunk; int c;
+        //超过一个slab大小的值，单独申请直接内存，不进入空闲链表，由GC回收
+        if (len > slabSize) {
+            c = -1;
+            chunk = ByteBuffer.allocateDirect(len);
+        }
+        else {
+            c = Math.max(sizeClass(len), MIN_CHUNK_SHIFT);
+            if ((chunk = freeChunks[c].poll()) == null)
+                chunk = carve(1 << c);
+        }
+        chunk.clear();
+        chunk.put(value.duplicate());
+        chunk.flip();
+        return new Slot(chunk, c);
+    }
+
+    /**
+     * Cuts a chunk of the given power-of-two size from the current
+     * slab, starting a new slab if it does not fit. The tail of the old
+     * slab is split into smaller chunks and put on their free lists.
+     */
+    private ByteBuffer carve(int size) {
+        synchronized (slabLock) {
+            ByteBuffer s = slab;
+            if (s == null || s.remaining() < size) {
+                if (s != null)
+                    spill(s);
+                slab = s = ByteBuffer.allocateDirect(slabSize);
+            }
+            int p = s.position();
+            s.limit(p + size);
+            ByteBuffer chunk = s.slice();
+            s.limit(slabSize);
+            s.position(p + size);
+            return chunk;
+        }
+    }
+
+    /**
+     * Hands the unused tail of a retired slab to the free lists.
+     */
+    private void spill(ByteBuffer s) {
+        for (int c = freeChunks.length - 1; c >= MIN_CHUNK_SHIFT; --c) {
+            int size = 1 << c;
+            while (s.remaining() >= size) {
+                int p = s.position();
+                s.limit(p + size);
+                freeChunks[c].offer(s.slice());
+                s.limit(slabSize);
+                s.position(p + size);
+            }
+        }
+    }
+
+    /**
+     * Drops one reference to s, recycling its chunk on the last one.
+     */
+    void release(Slot s) {
+        if (s.refs.decrementAndGet() == 0 && s.sizeClass >= 0)
+            freeChunks[s.sizeClass].offer(s.chunk);
+    }
+}
@@ -0,0 +1,1314 @@
+package java.util.concurrent.locks;
+import java.util.concurrent.TimeUnit;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.concurrent.locks.AbstractQueuedSynchronizer.DeadlineWheel;
+import java.util.concurrent.locks.AbstractQueuedSynchronizer.Node;
+import sun.misc.Unsafe;
+
+/**
+ * A version of {@link AbstractQueuedSynchronizer} in which
+ * synchronization state is maintained as a {@code long}.
+ * This class has the same structure, properties and methods as
+ * {@code AbstractQueuedSynchronizer} with the exception that all
+ * state-related parameters and results are defined as {@code long}
+ * rather than {@code int}. It queues the same {@code Node}s and
+ * recycles them the same way, with a spare node of its own, and reuses
+ * the shared-wakeup fan-out and the deadline wheel for timed acquires.
+ *
+ * <p>Besides plain 64-bit counts, the state can be used packed: a
+ * low count field, a version field bumped by every packed update, and
+ * a few high owner bits (see {@link #COUNT_BITS}). A synchronizer can
+ * then check and change count, version and owner in one CAS, where
+ * with an {@code int} state it would need a second atomic. For
+ * example, a semaphore over a byte budget:
+ *
+ * <pre> {@code
+ * class ByteBudget {
+ *   private static class Sync extends AbstractQueuedLongSynchronizer {
+ *     Sync(long bytes) { setState(pack(bytes, 0L, 0)); }
+ *
+ *     protected long tryAcquireShared(long bytes) {
+ *       for (;;) {
+ *         long s = getState(), left = countOf(s) - bytes;
+ *         if (left < 0L || compareAndSetCount(s, left))
+ *           return left;
+ *       }
+ *     }
+ *
+ *     protected boolean tryReleaseShared(long bytes) {
+ *       for (;;) {
+ *         long s = getState();
+ *         if (compareAndSetCount(s, countOf(s) + bytes))
+ *           return true;
+ *       }
+ *     }
+ *   }
+ *
+ *   private final Sync sync;
+ *   public ByteBudget(long bytes) { sync = new Sync(bytes); }
+ *   public void reserve(long bytes) { sync.acquireShared(bytes); }
+ *   public void free(long bytes) { sync.releaseShared(bytes); }
+ * }}</pre>
+ *
+ * 64位state版本的AQS：队列、Node、节点复用、树形唤醒、超时时间轮都和AQS共用，
+ * 只是state和所有参数/返回值都换成了long。state还可以按位打包成 计数 + 版本号 + 持有者，
+ * 一次CAS同时修改这几个字段，不用再组合多个原子变量。
+ */
+public abstract class AbstractQueuedLongSynchronizer
+    extends AbstractOwnableSynchronizer
+    implements java.io.Serializable {
+
+    private static final long serialVersionUID = 7373984972572414692L;
+
+    protected AbstractQueuedLongSynchronizer() { }
+
+    /**
+     * Head of the wait queue, lazily initialized.  Except for
+     * initialization, it is modified only via method setHead.
+     */
+    private transient volatile Node head;
+
+    /**
+     * Tail of the wait queue, lazily initialized.  Modified only via
+     * method enq to add new wait node.
+     */
+    private transient volatile Node tail;
+
+    /**
+     * A head dequeued earlier, kept for the next addWaiter on this
+     * synchronizer, or null.  Per instance for the reason given in
+     * AbstractQueuedSynchronizer's notes on node recycling.
+     */
+    private transient volatile Node spareNode;
+
+    /**
+     * The synchronization state.
+     */
+    private volatile long state;
+
+    /**
+     * Whether shared releases wake the queue as a tree.
+     */
+    private transient volatile boolean wakeFanOut;
+
+    /**
+     * Returns the current value of synchronization state.
+     * @return current state value
+     */
+    protected final long getState() {
+        return state;
+    }
+
+    /**
+     * Sets the value of synchronization state.
+     * @param newState the new state value
+     */
+    protected final void setState(long newState) {
+        state = newState;
+    }
+
+    /**
+     * Atomically sets synchronization state to the given updated
+     * value if the current state value equals the expected value.
+     *
+     * @param expect the expected value
+     * @param update the new value
+     * @return {@code true} if successful
+     */
+    protected final boolean compareAndSetState(long expect, long update) {
+        return unsafe.compareAndSwapLong(this, stateOffset, expect, update);
+    }
+
+    // Packed state
+
+    /*
+     * Packed layout: bits [0, COUNT_BITS) hold a count, the next
+     * VERSION_BITS a version that wraps, and the top OWNER_BITS an
+     * owner tag of the subclass's choosing (a slot number, a mode).
+     * 打包布局：低40位计数，中间16位版本号（回绕），高8位持有者标记。
+     */
+
+    /** Width of the count field: counts up to 2^40 - 1. */
+    protected static final int COUNT_BITS = 40;
+    /** Width of the version field. */
+    protected static final int VERSION_BITS = 16;
+    /** Width of the owner field. */
+    protected static final int OWNER_BITS = 64 - COUNT_BITS - VERSION_BITS;
+
+    /** Largest count a packed state can hold. */
+    protected static final long MAX_COUNT = (1L << COUNT_BITS) - 1L;
+    private static final long VERSION_MASK = (1L << VERSION_BITS) - 1L;
+    private static final long OWNER_MASK = (1L << OWNER_BITS) - 1L;
+
+    /**
+     * Packs the three fields into a state value.
+     *
+     * @throws IllegalArgumentException if count or owner is out of range
+     */
+    protected static long pack(long count, long version, int owner) {
+        if (count < 0L || count > MAX_COUNT || owner < 0 || owner > OWNER_MASK)
+            throw new IllegalArgumentException();
+        return count | ((version & VERSION_MASK) << COUNT_BITS) |
+            ((long)owner << (COUNT_BITS + VERSION_BITS));
+    }
+
+    protected static long countOf(long s) {
+        return s & MAX_COUNT;
+    }
+
+    protected static long versionOf(long s) {
+        return (s >>> COUNT_BITS) & VERSION_MASK;
+    }
+
+    protected static int ownerOf(long s) {
+        return (int)(s >>> (COUNT_BITS + VERSION_BITS));
+    }
+
+    /**
+     * CASes the count of packed state s to count, bumping the version
+     * and keeping the owner.
+     *
+     * @throws IllegalArgumentException if count is out of range
+     */
+    protected final boolean compareAndSetCount(long s, long count) {
+        return compareAndSetState(s, pack(count, versionOf(s) + 1L, ownerOf(s)));
+    }
+
+    /**
+     * CASes packed state s to the given count and owner, bumping the
+     * version.
+     *
+     * @throws IllegalArgumentException if count or owner is out of range
+     */
+    protected final boolean compareAndSetCountAndOwner(long s, long count, int owner) {
+        return compareAndSetState(s, pack(count, versionOf(s) + 1L, owner));
+    }
+
+    // Queuing utilities
+
+    /**
+     * The number of nanoseconds for which it is faster to spin
+     * rather than to use timed park.
+     */
+    static final long spinForTimeoutThreshold = 1000L;
+
+    /**
+     * Inserts node into queue, initializing if necessary.
+     * @param node the node to insert
+     * @return node's predecessor
+     */
+    private Node enq(final Node node) {
+        for (;;) {
+            Node t = tail;
+            if (t == null) { // Must initialize
+                if (compareAndSetHead(new Node()))
+                    tail = head;
+            } else {
+                node.prev = t;
+                if (compareAndSetTail(t, node)) {
+                    t.next = node;
+                    return t;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a node for the current thread in the given mode, reusing
+     * this synchronizer's spare node if it has one.
+     */
+    private Node newWaiter(Node mode) {
+        Thread t = Thread.currentThread();
+        Node node = spareNode;
+        if (node != null && compareAndSetSpareNode(node, null))
+            node.reset(t, mode);
+        else {
+            node = new Node(t, mode);
+            node.recyclable = true;
+        }
+        return node;
+    }
+
+    /**
+     * Keeps old head p, just dequeued by the current thread, as this
+     * synchronizer's spare node unless it already has one.
+     */
+    private void recycle(Node p) {
+        if (p.recyclable && spareNode == null)
+            compareAndSetSpareNode(null, p);
+    }
+
+    /**
+     * Creates and enqueues node for current thread and given mode,
+     * reusing this synchronizer's spare node if it has one.
+     *
+     * @param mode Node.EXCLUSIVE for exclusive, Node.SHARED for shared
+     * @return the new node
+     */
+    private Node addWaiter(Node mode) {
+        Node node = newWaiter(mode);
+        Node pred = tail;
+        if (pred != null) {
+            node.prev = pred;
+            if (compareAndSetTail(pred, node)) {
+                pred.next = node;
+                return node;
+            }
+        }
+        enq(node);
+        return node;
+    }
+
+    /**
+     * Sets head of queue to be node, thus dequeuing.
+     */
+    private void setHead(Node node) {
+        head = node;
+        node.thread = null;
+        node.prev = null;
+    }
+
+    /**
+     * Wakes up node's successor, if one exists.
+     */
+    private void unparkSuccessor(Node node) {
+        int ws = node.waitStatus;
+        if (ws < 0)
+            AbstractQueuedSynchronizer.compareAndSetWaitStatus(node, ws, 0);
+        Node s = node.next;
+        if (s == null || s.waitStatus > 0) {
+            s = null;
+            for (Node t = tail; t != null && t != node; t = t.prev)
+                if (t.waitStatus <= 0)
+                    s = t;
+        }
+        if (s != null)
+            LockSupport.unpark(s.thread);
+    }
+
+    /**
+     * Release action for shared mode -- signals successor and ensures
+     * propagation.
+     */
+    private void doReleaseShared() {
+        for (;;) {
+            Node h = head;
+            if (h != null && h != tail) {
+                int ws = h.waitStatus;
+                if (ws == Node.SIGNAL) {
+                    if (!AbstractQueuedSynchronizer.compareAndSetWaitStatus(h, Node.SIGNAL, 0))
+                        continue;            // loop to recheck cases
+                    if (wakeFanOut)
+                        AbstractQueuedSynchronizer.startFanOut(h);
+                    unparkSuccessor(h);
+                }
+                else if (ws == 0 &&
+                         !AbstractQueuedSynchronizer.compareAndSetWaitStatus(h, 0, Node.PROPAGATE))
+                    continue;                // loop on failed CAS
+            }
+            if (h == head)                   // loop if head changed
+                break;
+        }
+    }
+
+    /**
+     * Turns tree fan-out of shared wakeups on or off; see
+     * {@link AbstractQueuedSynchronizer#setSharedWakeFanOut}.
+     *
+     * @param on whether shared releases fan out
+     */
+    protected final void setSharedWakeFanOut(boolean on) {
+        wakeFanOut = on;
+    }
+
+    /**
+     * Takes node, which acquired from behind head after a fan-out
+     * woke it, out of the queue, and wakes its successor; see
+     * AbstractQueuedSynchronizer.leaveFanOut.
+     */
+    private void leaveFanOut(Node node) {
+        node.thread = null;
+        Node pred = node.prev;
+        while (pred.waitStatus > 0)
+            node.prev = pred = pred.prev;
+        node.waitStatus = Node.CANCELLED;
+        if (node == tail && compareAndSetTail(node, pred))
+            AbstractQueuedSynchronizer.compareAndSetNext(pred, node, null);
+        if (node.next != null)
+            unparkSuccessor(node);
+    }
+
+    /**
+     * Sets head of queue, and checks if successor may be waiting
+     * in shared mode, if so propagating if either propagate > 0 or
+     * PROPAGATE status was set.
+     */
+    private void setHeadAndPropagate(Node node, long propagate) {
+        Node h = head; // Record old head for check below
+        setHead(node);
+        if (propagate > 0 || h == null || h.waitStatus < 0 ||
+            (h = head) == null || h.waitStatus < 0) {
+            Node s = node.next;
+            if (s == null || s.isShared())
+                doReleaseShared();
+        }
+    }
+
+    // Utilities for various versions of acquire
+
+    /**
+     * Cancels an ongoing attempt to acquire.
+     */
+    private void cancelAcquire(Node node) {
+        if (node == null)
+            return;
+
+        node.thread = null;
+
+        // Skip cancelled predecessors
+        Node pred = node.prev;
+        while (pred.waitStatus > 0)
+            node.prev = pred = pred.prev;
+
+        Node predNext = pred.next;
+
+        node.waitStatus = Node.CANCELLED;
+
+        // If we are the tail, remove ourselves.
+        if (node == tail && compareAndSetTail(node, pred)) {
+            AbstractQueuedSynchronizer.compareAndSetNext(pred, predNext, null);
+        } else {
+            int ws;
+            if (pred != head &&
+                ((ws = pred.waitStatus) == Node.SIGNAL ||
+                 (ws <= 0 && AbstractQueuedSynchronizer.compareAndSetWaitStatus(pred, ws, Node.SIGNAL))) &&
+                pred.thread != null) {
+                Node next = node.next;
+                if (next != null && next.waitStatus <= 0)
+                    AbstractQueuedSynchronizer.compareAndSetNext(pred, predNext, next);
+            } else {
+                unparkSuccessor(node);
+            }
+            node.next = node; // help GC
+        }
+    }
+
+    /**
+     * Convenience method to park and then check if interrupted.
+     */
+    private final boolean parkAndCheckInterrupt() {
+        LockSupport.park(this);
+        return Thread.interrupted();
+    }
+
+    /**
+     * Parks a timed waiter until deadline, through the shared deadline
+     * wheel when the wait is long enough.
+     */
+    private DeadlineWheel.Timeout parkUntil(DeadlineWheel.Timeout timer,
+                                            long deadline, long nanosTimeout) {
+        if (timer == null && nanosTimeout >= DeadlineWheel.MIN_WHEEL_NANOS)
+            timer = DeadlineWheel.schedule(deadline);
+        if (timer != null)
+            LockSupport.park(this);
+        else
+            LockSupport.parkNanos(this, nanosTimeout);
+        return timer;
+    }
+
+    /**
+     * Acquires in exclusive uninterruptible mode for thread already in
+     * queue. Used by condition wait methods as well as acquire.
+     *
+     * @return {@code true} if interrupted while waiting
+     */
+    final boolean acquireQueued(final Node node, long arg) {
+        boolean failed = true;
+        try {
+            boolean interrupted = false;
+            for (;;) {
+                final Node p = node.predecessor();
+                if (p == head && tryAcquire(arg)) {
+                    setHead(node);
+                    p.next = null; // help GC
+                    recycle(p);
+                    failed = false;
+                    return interrupted;
+                }
+                if (AbstractQueuedSynchronizer.shouldParkAfterFailedAcquire(p, node) &&
+                    parkAndCheckInterrupt())
+                    interrupted = true;
+            }
+        } finally {
+            if (failed)
+                cancelAcquire(node);
+        }
+    }
+
+    /**
+     * Acquires in exclusive interruptible mode.
+     */
+    private void doAcquireInterruptibly(long arg)
+        throws InterruptedException {
+        final Node node = addWaiter(Node.EXCLUSIVE);
+        boolean failed = true;
+        try {
+            for (;;) {
+                final Node p = node.predecessor();
+                if (p == head && tryAcquire(arg)) {
+                    setHead(node);
+                    p.next = null; // help GC
+                    recycle(p);
+                    failed = false;
+                    return;
+                }
+                if (AbstractQueuedSynchronizer.shouldParkAfterFailedAcquire(p, node) &&
+                    parkAndCheckInterrupt())
+                    throw new InterruptedException();
+            }
+        } finally {
+            if (failed)
+                cancelAcquire(node);
+        }
+    }
+
+    /**
+     * Acquires in exclusive timed mode.
+     */
+    private boolean doAcquireNanos(long arg, long nanosTimeout)
+            throws InterruptedException {
+        if (nanosTimeout <= 0L)
+            return false;
+        final long deadline = System.nanoTime() + nanosTimeout;
+        final Node node = addWaiter(Node.EXCLUSIVE);
+        boolean failed = true;
+        DeadlineWheel.Timeout timer = null;
+        try {
+            for (;;) {
+                final Node p = node.predecessor();
+                if (p == head && tryAcquire(arg)) {
+                    setHead(node);
+                    p.next = null; // help GC
+                    recycle(p);
+                    failed = false;
+                    return true;
+                }
+                nanosTimeout = deadline - System.nanoTime();
+                if (nanosTimeout <= 0L)
+                    return false;
+                if (AbstractQueuedSynchronizer.shouldParkAfterFailedAcquire(p, node) &&
+                    nanosTimeout > spinForTimeoutThreshold)
+                    timer = parkUntil(timer, deadline, nanosTimeout);
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+            }
+        } finally {
+            if (timer != null)
+                timer.cancel();
+            if (failed)
+                cancelAcquire(node);
+        }
+    }
+
+    /**
+     * Acquires in shared uninterruptible mode.
+     */
+    private void doAcquireShared(long arg) {
+        final Node node = addWaiter(Node.SHARED);
+        boolean failed = true;
+        try {
+            boolean interrupted = false;
+            for (;;) {
+                if (node.wakeSpan != 0)
+                    AbstractQueuedSynchronizer.fanOut(node);
+                final Node p = node.predecessor();
+                //被树形唤醒的节点不等排到队头，直接尝试获取
+                if (p == head || node.wakeSpan != 0) {
+                    long r = tryAcquireShared(arg);
+                    if (r >= 0) {
+                        if (p == head) {
+                            setHeadAndPropagate(node, r);
+                            p.next = null; // help GC
+                            recycle(p);
+                        }
+                        else
+                            leaveFanOut(node);
+                        if (interrupted)
+                            AbstractQueuedSynchronizer.selfInterrupt();
+                        failed = false;
+                        return;
+                    }
+                    node.wakeSpan = 0;
+                }
+                if (AbstractQueuedSynchronizer.shouldParkAfterFailedAcquire(p, node) &&
+                    parkAndCheckInterrupt())
+                    interrupted = true;
+            }
+        } finally {
+            if (failed)
+                cancelAcquire(node);
+        }
+    }
+
+    /**
+     * Acquires in shared interruptible mode.
+     */
+    private void doAcquireSharedInterruptibly(long arg)
+        throws InterruptedException {
+        final Node node = addWaiter(Node.SHARED);
+        boolean failed = true;
+        try {
+            for (;;) {
+                if (node.wakeSpan != 0)
+                    AbstractQueuedSynchronizer.fanOut(node);
+                final Node p = node.predecessor();
+                //被树形唤醒的节点不等排到队头，直接尝试获取
+                if (p == head || node.wakeSpan != 0) {
+                    long r = tryAcquireShared(arg);
+                    if (r >= 0) {
+                        if (p == head) {
+                            setHeadAndPropagate(node, r);
+                            p.next = null; // help GC
+                            recycle(p);
+                        }
+                        else
+                            leaveFanOut(node);
+                        failed = false;
+                        return;
+                    }
+                    node.wakeSpan = 0;
+                }
+                if (AbstractQueuedSynchronizer.shouldParkAfterFailedAcquire(p, node) &&
+                    parkAndCheckInterrupt())
+                    throw new InterruptedException();
+            }
+        } finally {
+            if (failed)
+                cancelAcquire(node);
+        }
+    }
+
+    /**
+     * Acquires in shared timed mode.
+     */
+    private boolean doAcquireSharedNanos(long arg, long nanosTimeout)
+            throws InterruptedException {
+        if (nanosTimeout <= 0L)
+            return false;
+        final long deadline = System.nanoTime() + nanosTimeout;
+        final Node node = addWaiter(Node.SHARED);
+        boolean failed = true;
+        DeadlineWheel.Timeout timer = null;
+        try {
+            for (;;) {
+                if (node.wakeSpan != 0)
+                    AbstractQueuedSynchronizer.fanOut(node);
+                final Node p = node.predecessor();
+                //被树形唤醒的节点不等排到队头，直接尝试获取
+                if (p == head || node.wakeSpan != 0) {
+                    long r = tryAcquireShared(arg);
+                    if (r >= 0) {
+                        if (p == head) {
+                            setHeadAndPropagate(node, r);
+                            p.next = null; // help GC
+                            recycle(p);
+                        }
+                        else
+                            leaveFanOut(node);
+                        failed = false;
+                        return true;
+                    }
+                    node.wakeSpan = 0;
+                }
+                nanosTimeout = deadline - System.nanoTime();
+                if (nanosTimeout <= 0L)
+                    return false;
+                if (AbstractQueuedSynchronizer.shouldParkAfterFailedAcquire(p, node) &&
+                    nanosTimeout > spinForTimeoutThreshold)
+                    timer = parkUntil(timer, deadline, nanosTimeout);
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+            }
+        } finally {
+            if (timer != null)
+                timer.cancel();
+            if (failed)
+                cancelAcquire(node);
+        }
+    }
+
+    // Main exported methods
+
+    /**
+     * Attempts to acquire in exclusive mode.
+     *
+     * @throws UnsupportedOperationException if exclusive mode is not supported
+     */
+    protected boolean tryAcquire(long arg) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Attempts to set the state to reflect a release in exclusive mode.
+     *
+     * @throws UnsupportedOperationException if exclusive mode is not supported
+     */
+    protected boolean tryRelease(long arg) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Attempts to acquire in shared mode. A negative value on failure;
+     * zero if acquisition succeeded but no subsequent shared-mode
+     * acquire can succeed; and a positive value if subsequent
+     * shared-mode acquires might also succeed.
+     *
+     * @throws UnsupportedOperationException if shared mode is not supported
+     */
+    protected long tryAcquireShared(long arg) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Attempts to set the state to reflect a release in shared mode.
+     *
+     * @throws UnsupportedOperationException if shared mode is not supported
+     */
+    protected boolean tryReleaseShared(long arg) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Returns {@code true} if synchronization is held exclusively with
+     * respect to the current (calling) thread.
+     *
+     * @throws UnsupportedOperationException if conditions are not supported
+     */
+    protected boolean isHeldExclusively() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Acquires in exclusive mode, ignoring interrupts.
+     */
+    public final void acquire(long arg) {
+        if (!tryAcquire(arg) &&
+            acquireQueued(addWaiter(Node.EXCLUSIVE), arg))
+            AbstractQueuedSynchronizer.selfInterrupt();
+    }
+
+    /**
+     * Acquires in exclusive mode, aborting if interrupted.
+     */
+    public final void acquireInterruptibly(long arg)
+            throws InterruptedException {
+        if (Thread.interrupted())
+            throw new InterruptedException();
+        if (!tryAcquire(arg))
+            doAcquireInterruptibly(arg);
+    }
+
+    /**
+     * Attempts to acquire in exclusive mode, aborting if interrupted,
+     * and failing if the given timeout elapses.
+     */
+    public final boolean tryAcquireNanos(long arg, long nanosTimeout)
+            throws InterruptedException {
+        if (Thread.interrupted())
+            throw new InterruptedException();
+        return tryAcquire(arg) ||
+            doAcquireNanos(arg, nanosTimeout);
+    }
+
+    /**
+     * Releases in exclusive mode.
+     */
+    public final boolean release(long arg) {
+        if (tryRelease(arg)) {
+            Node h = head;
+            if (h != null && h.waitStatus != 0)
+                unparkSuccessor(h);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Acquires in shared mode, ignoring interrupts.
+     */
+    public final void acquireShared(long arg) {
+        if (tryAcquireShared(arg) < 0)
+            doAcquireShared(arg);
+    }
+
+    /**
+     * Acquires in shared mode, aborting if interrupted.
+     */
+    public final void acquireSharedInterruptibly(long arg)
+            throws InterruptedException {
+        if (Thread.interrupted())
+            throw new InterruptedException();
+        if (tryAcquireShared(arg) < 0)
+            doAcquireSharedInterruptibly(arg);
+    }
+
+    /**
+     * Attempts to acquire in shared mode, aborting if interrupted, and
+     * failing if the given timeout elapses.
+     */
+    public final boolean tryAcquireSharedNanos(long arg, long nanosTimeout)
+            throws InterruptedException {
+        if (Thread.interrupted())
+            throw new InterruptedException();
+        return tryAcquireShared(arg) >= 0 ||
+            doAcquireSharedNanos(arg, nanosTimeout);
+    }
+
+    /**
+     * Releases in shared mode.
+     */
+    public final boolean releaseShared(long arg) {
+        if (tryReleaseShared(arg)) {
+            doReleaseShared();
+            return true;
+        }
+        return false;
+    }
+
+    // Queue inspection methods
+
+    public final boolean hasQueuedThreads() {
+        return head != tail;
+    }
+
+    public final boolean hasContended() {
+        return head != null;
+    }
+
+    /**
+     * Returns the first (longest-waiting) thread in the queue, or
+     * {@code null} if no threads are currently queued.
+     */
+    public final Thread getFirstQueuedThread() {
+        // handle only fast path, else relay
+        return (head == tail) ? null : fullGetFirstQueuedThread();
+    }
+
+    private Thread fullGetFirstQueuedThread() {
+        Node h, s;
+        Thread st;
+        if (((h = head) != null && (s = h.next) != null &&
+             s.prev == head && (st = s.thread) != null) ||
+            ((h = head) != null && (s = h.next) != null &&
+             s.prev == head && (st = s.thread) != null))
+            return st;
+
+        Node t = tail;
+        Thread firstThread = null;
+        while (t != null && t != head) {
+            Thread tt = t.thread;
+            if (tt != null)
+                firstThread = tt;
+            t = t.prev;
+        }
+        return firstThread;
+    }
+
+    public final boolean isQueued(Thread thread) {
+        if (thread == null)
+            throw new NullPointerException();
+        for (Node p = tail; p != null; p = p.prev)
+            if (p.thread == thread)
+                return true;
+        return false;
+    }
+
+    final boolean apparentlyFirstQueuedIsExclusive() {
+        Node h, s;
+        return (h = head) != null &&
+            (s = h.next)  != null &&
+            !s.isShared()         &&
+            s.thread != null;
+    }
+
+    public final boolean hasQueuedPredecessors() {
+        Node t = tail; // Read fields in reverse initialization order
+        Node h = head;
+        Node s;
+        return h != t &&
+            ((s = h.next) == null || s.thread != Thread.currentThread());
+    }
+
+    // Instrumentation and monitoring methods
+
+    public final int getQueueLength() {
+        int n = 0;
+        for (Node p = tail; p != null; p = p.prev) {
+            if (p.thread != null)
+                ++n;
+        }
+        return n;
+    }
+
+    public final Collection<Thread> getQueuedThreads() {
+        ArrayList<Thread> list = new ArrayList<Thread>();
+        for (Node p = tail; p != null; p = p.prev) {
+            Thread t = p.thread;
+            if (t != null)
+                list.add(t);
+        }
+        return list;
+    }
+
+    public final Collection<Thread> getExclusiveQueuedThreads() {
+        ArrayList<Thread> list = new ArrayList<Thread>();
+        for (Node p = tail; p != null; p = p.prev) {
+            if (!p.isShared()) {
+                Thread t = p.thread;
+                if (t != null)
+                    list.add(t);
+            }
+        }
+        return list;
+    }
+
+    public final Collection<Thread> getSharedQueuedThreads() {
+        ArrayList<Thread> list = new ArrayList<Thread>();
+        for (Node p = tail; p != null; p = p.prev) {
+            if (p.isShared()) {
+                Thread t = p.thread;
+                if (t != null)
+                    list.add(t);
+            }
+        }
+        return list;
+    }
+
+    public String toString() {
+        long s = getState();
+        String q  = hasQueuedThreads() ? "non" : "";
+        return super.toString() +
+            "[State = " + s + ", " + q + "empty queue]";
+    }
+
+    // Internal support methods for Conditions
+
+    /**
+     * Returns true if a node, always one that was initially placed on
+     * a condition queue, is now waiting to reacquire on sync queue.
+     */
+    final boolean isOnSyncQueue(Node node) {
+        if (node.waitStatus == Node.CONDITION || node.prev == null)
+            return false;
+        if (node.next != null) // If has successor, it must be on queue
+            return true;
+        return findNodeFromTail(node);
+    }
+
+    private boolean findNodeFromTail(Node node) {
+        Node t = tail;
+        for (;;) {
+            if (t == node)
+                return true;
+            if (t == null)
+                return false;
+            t = t.prev;
+        }
+    }
+
+    /**
+     * Transfers a node from a condition queue onto sync queue.
+     * Returns true if successful.
+     */
+    final boolean transferForSignal(Node node) {
+        if (!AbstractQueuedSynchronizer.compareAndSetWaitStatus(node, Node.CONDITION, 0))
+            return false;
+        Node p = enq(node);
+        int ws = p.waitStatus;
+        if (ws > 0 || !AbstractQueuedSynchronizer.compareAndSetWaitStatus(p, ws, Node.SIGNAL))
+            LockSupport.unpark(node.thread);
+        return true;
+    }
+
+    /**
+     * Transfers node, if necessary, to sync queue after a cancelled
+     * wait. Returns true if thread was cancelled before being
+     * signalled.
+     */
+    final boolean transferAfterCancelledWait(Node node) {
+        if (AbstractQueuedSynchronizer.compareAndSetWaitStatus(node, Node.CONDITION, 0)) {
+            enq(node);
+            return true;
+        }
+        while (!isOnSyncQueue(node))
+            Thread.yield();
+        return false;
+    }
+
+    /**
+     * Invokes release with current state value; returns saved state.
+     * Cancels node and throws exception on failure.
+     */
+    final long fullyRelease(Node node) {
+        boolean failed = true;
+        try {
+            long savedState = getState();
+            if (release(savedState)) {
+                failed = false;
+                return savedState;
+            } else {
+                throw new IllegalMonitorStateException();
+            }
+        } finally {
+            if (failed)
+                node.waitStatus = Node.CANCELLED;
+        }
+    }
+
+    // Instrumentation methods for conditions
+
+    public final boolean owns(ConditionObject condition) {
+        return condition.isOwnedBy(this);
+    }
+
+    public final boolean hasWaiters(ConditionObject condition) {
+        if (!owns(condition))
+            throw new IllegalArgumentException("Not owner");
+        return condition.hasWaiters();
+    }
+
+    public final int getWaitQueueLength(ConditionObject condition) {
+        if (!owns(condition))
+            throw new IllegalArgumentException("Not owner");
+        return condition.getWaitQueueLength();
+    }
+
+    public final Collection<Thread> getWaitingThreads(ConditionObject condition) {
+        if (!owns(condition))
+            throw new IllegalArgumentException("Not owner");
+        return condition.getWaitingThreads();
+    }
+
+    /**
+     * Condition implementation for a {@link
+     * AbstractQueuedLongSynchronizer}, the same as
+     * {@link AbstractQueuedSynchronizer.ConditionObject} except that
+     * the saved state is a {@code long}.
+     */
+    public class ConditionObject implements Condition, java.io.Serializable {
+        private static final long serialVersionUID = 1173984872572414699L;
+        /** First node of condition queue. */
+        private transient Node firstWaiter;
+        /** Last node of condition queue. */
+        private transient Node lastWaiter;
+
+        public ConditionObject() { }
+
+        // Internal methods
+
+        /**
+         * Adds a new waiter to wait queue.
+         * @return its new wait node
+         */
+        private Node addConditionWaiter() {
+            Node t = lastWaiter;
+            // If lastWaiter is cancelled, clean out.
+            if (t != null && t.waitStatus != Node.CONDITION) {
+                unlinkCancelledWaiters();
+                t = lastWaiter;
+            }
+            Node node = new Node(Thread.currentThread(), Node.CONDITION);
+            if (t == null)
+                firstWaiter = node;
+            else
+                t.nextWaiter = node;
+            lastWaiter = node;
+            return node;
+        }
+
+        private void doSignal(Node first) {
+            do {
+                if ( (firstWaiter = first.nextWaiter) == null)
+                    lastWaiter = null;
+                first.nextWaiter = null;
+            } while (!transferForSignal(first) &&
+                     (first = firstWaiter) != null);
+        }
+
+        private void doSignalAll(Node first) {
+            lastWaiter = firstWaiter = null;
+            do {
+                Node next = first.nextWaiter;
+                first.nextWaiter = null;
+                transferForSignal(first);
+                first = next;
+            } while (first != null);
+        }
+
+        /**
+         * Unlinks cancelled waiter nodes from condition queue.
+         * Called only while holding lock.
+         */
+        private void unlinkCancelledWaiters() {
+            Node t = firstWaiter;
+            Node trail = null;
+            while (t != null) {
+                Node next = t.nextWaiter;
+                if (t.waitStatus != Node.CONDITION) {
+                    t.nextWaiter = null;
+                    if (trail == null)
+                        firstWaiter = next;
+                    else
+                        trail.nextWaiter = next;
+                    if (next == null)
+                        lastWaiter = trail;
+                }
+                else
+                    trail = t;
+                t = next;
+            }
+        }
+
+        // public methods
+
+        public final void signal() {
+            if (!isHeldExclusively())
+                throw new IllegalMonitorStateException();
+            Node first = firstWaiter;
+            if (first != null)
+                doSignal(first);
+        }
+
+        public final void signalAll() {
+            if (!isHeldExclusively())
+                throw new IllegalMonitorStateException();
+            Node first = firstWaiter;
+            if (first != null)
+                doSignalAll(first);
+        }
+
+        public final void awaitUninterruptibly() {
+            Node node = addConditionWaiter();
+            long savedState = fullyRelease(node);
+            boolean interrupted = false;
+            while (!isOnSyncQueue(node)) {
+                LockSupport.park(this);
+                if (Thread.interrupted())
+                    interrupted = true;
+            }
+            if (acquireQueued(node, savedState) || interrupted)
+                AbstractQueuedSynchronizer.selfInterrupt();
+        }
+
+        /** Mode meaning to reinterrupt on exit from wait */
+        private static final int REINTERRUPT =  1;
+        /** Mode meaning to throw InterruptedException on exit from wait */
+        private static final int THROW_IE    = -1;
+
+        private int checkInterruptWhileWaiting(Node node) {
+            return Thread.interrupted() ?
+                (transferAfterCancelledWait(node) ? THROW_IE : REINTERRUPT) :
+                0;
+        }
+
+        private void reportInterruptAfterWait(int interruptMode)
+            throws InterruptedException {
+            if (interruptMode == THROW_IE)
+                throw new InterruptedException();
+            else if (interruptMode == REINTERRUPT)
+                AbstractQueuedSynchronizer.selfInterrupt();
+        }
+
+        public final void await() throws InterruptedException {
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            Node node = addConditionWaiter();
+            long savedState = fullyRelease(node);
+            int interruptMode = 0;
+            while (!isOnSyncQueue(node)) {
+                LockSupport.park(this);
+                if ((interruptMode = checkInterruptWhileWaiting(node)) != 0)
+                    break;
+            }
+            if (acquireQueued(node, savedState) && interruptMode != THROW_IE)
+                interruptMode = REINTERRUPT;
+            if (node.nextWaiter != null) // clean up if cancelled
+                unlinkCancelledWaiters();
+            if (interruptMode != 0)
+                reportInterruptAfterWait(interruptMode);
+        }
+
+        public final long awaitNanos(long nanosTimeout)
+                throws InterruptedException {
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            Node node = addConditionWaiter();
+            long savedState = fullyRelease(node);
+            final long deadline = System.nanoTime() + nanosTimeout;
+            int interruptMode = 0;
+            while (!isOnSyncQueue(node)) {
+                if (nanosTimeout <= 0L) {
+                    transferAfterCancelledWait(node);
+                    break;
+                }
+                if (nanosTimeout >= spinForTimeoutThreshold)
+                    LockSupport.parkNanos(this, nanosTimeout);
+                if ((interruptMode = checkInterruptWhileWaiting(node)) != 0)
+                    break;
+                nanosTimeout = deadline - System.nanoTime();
+            }
+            if (acquireQueued(node, savedState) && interruptMode != THROW_IE)
+                interruptMode = REINTERRUPT;
+            if (node.nextWaiter != null)
+                unlinkCancelledWaiters();
+            if (interruptMode != 0)
+                reportInterruptAfterWait(interruptMode);
+            return deadline - System.nanoTime();
+        }
+
+        public final boolean awaitUntil(Date deadline)
+                throws InterruptedException {
+            long abstime = deadline.getTime();
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            Node node = addConditionWaiter();
+            long savedState = fullyRelease(node);
+            boolean timedout = false;
+            int interruptMode = 0;
+            while (!isOnSyncQueue(node)) {
+                if (System.currentTimeMillis() > abstime) {
+                    timedout = transferAfterCancelledWait(node);
+                    break;
+                }
+                LockSupport.parkUntil(this, abstime);
+                if ((interruptMode = checkInterruptWhileWaiting(node)) != 0)
+                    break;
+            }
+            if (acquireQueued(node, savedState) && interruptMode != THROW_IE)
+                interruptMode = REINTERRUPT;
+            if (node.nextWaiter != null)
+                unlinkCancelledWaiters();
+            if (interruptMode != 0)
+                reportInterruptAfterWait(interruptMode);
+            return !timedout;
+        }
+
+        public final boolean await(long time, TimeUnit unit)
+                throws InterruptedException {
+            long nanosTimeout = unit.toNanos(time);
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            Node node = addConditionWaiter();
+            long savedState = fullyRelease(node);
+            final long deadline = System.nanoTime() + nanosTimeout;
+            boolean timedout = false;
+            int interruptMode = 0;
+            while (!isOnSyncQueue(node)) {
+                if (nanosTimeout <= 0L) {
+                    timedout = transferAfterCancelledWait(node);
+                    break;
+                }
+                if (nanosTimeout >= spinForTimeoutThreshold)
+                    LockSupport.parkNanos(this, nanosTimeout);
+                if ((interruptMode = checkInterruptWhileWaiting(node)) != 0)
+                    break;
+                nanosTimeout = deadline - System.nanoTime();
+            }
+            if (acquireQueued(node, savedState) && interruptMode != THROW_IE)
+                interruptMode = REINTERRUPT;
+            if (node.nextWaiter != null)
+                unlinkCancelledWaiters();
+            if (interruptMode != 0)
+                reportInterruptAfterWait(interruptMode);
+            return !timedout;
+        }
+
+        //  support for instrumentation
+
+        final boolean isOwnedBy(AbstractQueuedLongSynchronizer sync) {
+            return sync == AbstractQueuedLongSynchronizer.this;
+        }
+
+        protected final boolean hasWaiters() {
+            if (!isHeldExclusively())
+                throw new IllegalMonitorStateException();
+            for (Node w = firstWaiter; w != null; w = w.nextWaiter) {
+                if (w.waitStatus == Node.CONDITION)
+                    return true;
+            }
+            return false;
+        }
+
+        protected final int getWaitQueueLength() {
+            if (!isHeldExclusively())
+                throw new IllegalMonitorStateException();
+            int n = 0;
+            for (Node w = firstWaiter; w != null; w = w.nextWaiter) {
+                if (w.waitStatus == Node.CONDITION)
+                    ++n;
+            }
+            return n;
+        }
+
+        protected final Collection<Thread> getWaitingThreads() {
+            if (!isHeldExclusively())
+                throw new IllegalMonitorStateException();
+            ArrayList<Thread> list = new ArrayList<Thread>();
+            for (Node w = firstWaiter; w != null; w = w.nextWaiter) {
+                if (w.waitStatus == Node.CONDITION) {
+                    Thread t = w.thread;
+                    if (t != null)
+                        list.add(t);
+                }
+            }
+            return list;
+        }
+    }
+
+    /**
+     * Setup to support compareAndSet. The Node CAS helpers live in
+     * AbstractQueuedSynchronizer.
+     */
+    private static final Unsafe unsafe = Unsafe.getUnsafe();
+    private static final long stateOffset;
+    private static final long headOffset;
+    private static final long tailOffset;
+    private static final long spareNodeOffset;
+
+    static {
+        try {
+            stateOffset = unsafe.objectFieldOffset
+                (AbstractQueuedLongSynchronizer.class.getDeclaredField("state"));
+            headOffset = unsafe.objectFieldOffset
+                (AbstractQueuedLongSynchronizer.class.getDeclaredField("head"));
+            tailOffset = unsafe.objectFieldOffset
+                (AbstractQueuedLongSynchronizer.class.getDeclaredField("tail"));
+            spareNodeOffset = unsafe.objectFieldOffset
+                (AbstractQueuedLongSynchronizer.class.getDeclaredField("spareNode"));
+
+        } catch (Exception ex) { throw new Error(ex); }
+    }
+
+    /**
+     * CAS head field. Used only by enq.
+     */
+    private final boolean compareAndSetHead(Node update) {
+        return unsafe.compareAndSwapObject(this, headOffset, null, update);
+    }
+
+    /**
+     * CAS tail field. Used only by enq.
+     */
+    private final boolean compareAndSetTail(Node expect, Node update) {
+        return unsafe.compareAndSwapObject(this, tailOffset, expect, update);
+    }
+
+    /**
+     * CAS spareNode field. Used only by newWaiter and recycle.
+     */
+    private final boolean compareAndSetSpareNode(Node expect, Node update) {
+        return unsafe.compareAndSwapObject(this, spareNodeOffset, expect, update);
+    }
+}
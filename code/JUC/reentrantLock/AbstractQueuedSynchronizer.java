@@ -1,8 +1,21 @@
 ﻿package java.util.concurrent.locks;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
 import sun.misc.Unsafe;
 
 public abstract class AbstractQueuedSynchronizer
@@ -206,6 +219,27 @@ public abstract class AbstractQueuedSynchronizer
         //reentrantLock 未用到...先不说..
         Node nextWaiter;
 
+        /**
+         * True if this node was made by addWaiter and so has only ever
+         * been on the sync queue. Only such nodes are recycled; nodes
+         * from condition queues may still be linked from there.
+         */
+        boolean recyclable;
+
+        /**
+         * In fan-out mode, nonzero once a release has woken this node:
+         * SPAN_UNCOUNTED if it has yet to count the queue behind it,
+         * otherwise the number of queued nodes, starting with this one,
+         * that it is still responsible for waking.
+         */
+        volatile int wakeSpan;
+
+        /** Acquire priority in priority mode; larger is served first. */
+        int priority;
+
+        /** System.nanoTime() at enqueue in priority mode, else 0. */
+        long enqueuedAt;
+
         /**
          * Returns true if node is waiting in shared mode.
          */
@@ -240,6 +274,97 @@ public abstract class AbstractQueuedSynchronizer
             this.waitStatus = waitStatus;
             this.thread = thread;
         }
+
+        /**
+         * Clears a recycled node for reuse by addWaiter. Called before
+         * the node is published by the tail CAS.
+         */
+        final void reset(Thread thread, Node mode) {
+            this.prev = null;
+            this.next = null;
+            this.waitStatus = 0;
+            this.wakeSpan = 0;
+            this.priority = 0;
+            this.enqueuedAt = 0L;
+            this.nextWaiter = mode;
+            this.thread = thread;
+        }
+    }
+
+    /*
+     * Node recycling.  Every contended acquire used to allocate a Node
+     * in addWaiter and drop the old head in the acquire loop.  Now the
+     * thread that dequeues a head keeps it as the synchronizer's spare
+     * node and the next addWaiter on the same synchronizer reuses it,
+     * so a steady contended lock/unlock cycle allocates no Nodes.  It
+     * still allocates JFR events while a recording has them enabled,
+     * and every timed wait long enough for the deadline wheel
+     * allocates a DeadlineWheel.Timeout.
+     *
+     * A dropped head can still be touched by threads that read head
+     * before it moved: a releaser in unparkSuccessor or
+     * doReleaseShared, cancelAcquire walking prev links, or the
+     * monitoring methods.  Each such stale access is harmless on a
+     * recycled node: the waitStatus CASes at worst clear or set SIGNAL
+     * or PROPAGATE, after which the stale thread unparks the node's
+     * current successor or a later release does, and a woken thread
+     * that cannot acquire just parks again; the next CAS in
+     * cancelAcquire expects a cancelled node as the old next, which a
+     * reset node never has; hasQueuedPredecessors can only err toward
+     * "has predecessor".  Cancelled nodes and condition nodes are never
+     * recycled, since other nodes may still point at them.
+     *
+     * The argument above relies on the stale thread being a releaser
+     * or waiter of the same synchronizer, so the spare is kept per
+     * synchronizer, not per thread.  A thread-wide spare would hand a
+     * head of lock A to a waiter of lock B; a stale releaser of A could
+     * then clear SIGNAL on it, and no release of A would repair B's
+     * queue, so B's next waiter could sleep forever.
+     *
+     * 节点复用：拿到锁的线程把出队的老head留在这个同步器上，下次在同一个同步器上addWaiter直接复用，
+     * 稳定竞争状态下lock/unlock不再分配Node（开启JFR录制时的事件对象、长时间定时等待的Timeout仍然要分配）。老head可能还被之前读到head的线程访问，
+     * 上面分析了这些过期访问在复用节点上最多造成一次多余的唤醒。
+     * 取消的节点 和 条件队列的节点不复用。
+     * 备用节点按同步器保存，不能按线程：否则A锁的老head会被B锁复用，A锁过期的释放线程
+     * 清掉它的SIGNAL之后，B锁没有人会补救，B锁的下一个等待者可能永远挂起。
+     *
+     * fanOut, shouldParkAfterFailedAcquire and the Node CAS methods
+     * are static and package-private because
+     * AbstractQueuedLongSynchronizer queues the same Nodes; it keeps
+     * its own spare node.
+     */
+
+    /**
+     * A head dequeued earlier, kept for the next addWaiter on this
+     * synchronizer, or null.  It only ever holds a node that is off
+     * the queue, so the CAS in newWaiter cannot take a live node even
+     * if the same node was taken and put back in between.
+     */
+    private transient volatile Node spareNode;
+
+    /**
+     * Returns a node for the current thread in the given mode, reusing
+     * this synchronizer's spare node if it has one.
+     */
+    private Node newWaiter(Node mode) {
+        Thread t = Thread.currentThread();
+        Node node = spareNode;
+        if (node != null && compareAndSetSpareNode(node, null))
+            node.reset(t, mode);
+        else {
+            node = new Node(t, mode);
+            node.recyclable = true;
+        }
+        return node;
+    }
+
+    /**
+     * Keeps old head p, just dequeued by the current thread, as this
+     * synchronizer's spare node unless it already has one.
+     */
+    private void recycle(Node p) {
+        if (p.recyclable && spareNode == null)
+            compareAndSetSpareNode(null, p);
     }
 
     /**
@@ -265,6 +390,52 @@ public abstract class AbstractQueuedSynchronizer
     //独占模式：0 表示未加锁状态   >0 表示已经加锁状态
     private volatile int state;
 
+    /**
+     * Moving average of how long the lock was held after a queued
+     * exclusive acquire, in nanoseconds; 0 until first measured.
+     * Written only by the exclusive owner, so plain writes suffice;
+     * waiters read it racily to size their spin.
+     */
+    private transient long avgHoldNanos;
+
+    /**
+     * System.nanoTime() of the current queued exclusive acquire, or 0
+     * if the owner got in without queuing. Written by the owner.
+     * release takes it before tryRelease, because a new owner may
+     * write it as soon as the lock is free, and puts it back if
+     * tryRelease does not fully release, including when it throws
+     * for a caller that is not the owner. Such a misuse racing with
+     * the owner can at worst skew one hold sample.
+     */
+    private transient long holdStart;
+
+    /**
+     * Contention statistics, or null when profiling is off.
+     */
+    private transient volatile ContentionProfile profile;
+
+    /**
+     * Whether shared releases wake the queue as a tree; see fanOut.
+     */
+    private transient volatile boolean wakeFanOut;
+
+    /**
+     * Whether releases wake the highest-priority waiter; see unparkBest.
+     */
+    private transient volatile boolean priorityQueueing;
+
+    /**
+     * System.nanoTime() when priority mode was last turned on; the
+     * queue time of waiters that were already queued then.
+     */
+    private transient volatile long priorityQueueingSince;
+
+    /**
+     * In priority mode, the waiter last picked by unparkBest, which
+     * alone may acquire from behind head.next; null when none is.
+     */
+    private transient volatile Node chosen;
+
     /**
      * Returns the current value of synchronization state.
      * This operation has memory semantics of a {@code volatile} read.
@@ -299,6 +470,33 @@ public abstract class AbstractQueuedSynchronizer
         return unsafe.compareAndSwapInt(this, stateOffset, expect, update);
     }
 
+    /**
+     * Returns the synchronization state with plain, non-volatile read
+     * semantics. The value is only reliable for the thread that last
+     * wrote it, such as an exclusive owner reading its own hold count.
+     *
+     * @return current state value as seen without ordering guarantees
+     */
+    protected final int getStatePlain() {
+        return unsafe.getInt(this, stateOffset);
+    }
+
+    /**
+     * Sets the synchronization state with plain, non-volatile write
+     * semantics: no fence, so other threads may observe the new value
+     * late. Only safe for changes no other thread acts on, such as an
+     * exclusive owner adjusting a nonzero hold count; the write that
+     * frees the synchronizer must use {@link #setState}.
+     *
+     * 普通写，没有内存屏障。只适合其它线程不关心具体值的修改，比如持锁线程修改重入次数（state一直大于0）；
+     * 真正释放锁的那次写必须用 setState。
+     *
+     * @param newState the new state value
+     */
+    protected final void setStatePlain(int newState) {
+        unsafe.putInt(this, stateOffset, newState);
+    }
+
     // Queuing utilities
 
     /**
@@ -308,6 +506,68 @@ public abstract class AbstractQueuedSynchronizer
      */
     static final long spinForTimeoutThreshold = 1000L;
 
+    /** Number of CPUs; spinning is pointless on a uniprocessor. */
+    static final int NCPU = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Holds at least this long (roughly a park/unpark round trip) are
+     * not worth spinning for.
+     */
+    static final long SPIN_HOLD_LIMIT_NANOS = 20000L;
+
+    /** Upper bound on spins of the first queued waiter per acquire. */
+    static final int MAX_ACQUIRE_SPINS = 1 << 11;
+
+    /**
+     * Returns how many times the first queued waiter polls the state
+     * before parking: enough to cover about two average hold times
+     * (one poll with its spin hint costs some tens of nanoseconds), or
+     * none if holds are long or not yet measured. The poll only reads
+     * the state and goes back to tryAcquire once it changes, so
+     * spinning waiters do not CAS the word the owner must write to
+     * release.
+     */
+    final int acquireSpins() {
+        long avg = avgHoldNanos;
+        if (NCPU < 2 || avg <= 0L || avg >= SPIN_HOLD_LIMIT_NANOS)
+            return 0;
+        return (int)Math.min(MAX_ACQUIRE_SPINS, avg >>> 3);
+    }
+
+    /**
+     * Folds the hold that started at start into avgHoldNanos (1/8
+     * weight for the new sample). Called by the releasing owner.
+     */
+    private void recordHold(long start) {
+        long d = System.nanoTime() - start, avg = avgHoldNanos;
+        avgHoldNanos = (avg <= 0L) ? d : avg + ((d - avg) >> 3);
+    }
+
+    /**
+     * Parks a timed waiter until deadline. Waits long enough for the
+     * deadline wheel park without a timeout and are unparked by the
+     * wheel's ticker when they expire; short ones use parkNanos.
+     *
+     * 超时等待：时间够长的交给共享的时间轮，自己无超时park，到期后由时间轮线程批量唤醒；
+     * 很短的等待仍然用parkNanos。
+     *
+     * @param timer the waiter's wheel entry from a previous call, or null
+     * @return the wheel entry, to be cancelled when the wait ends
+     */
+    private DeadlineWheel.Timeout parkUntil(DeadlineWheel.Timeout timer,
+                                            long deadline, long nanosTimeout) {
+        ContentionProfile prof;
+        if ((prof = profile) != null)
+            prof.parked();
+        if (timer == null && nanosTimeout >= DeadlineWheel.MIN_WHEEL_NANOS)
+            timer = DeadlineWheel.schedule(deadline);
+        if (timer != null)
+            LockSupport.park(this);
+        else
+            LockSupport.parkNanos(this, nanosTimeout);
+        return timer;
+    }
+
     /**
      * Inserts node into queue, initializing if necessary. See picture above.
      * @param node the node to insert
@@ -316,6 +576,9 @@ public abstract class AbstractQueuedSynchronizer
     //AQS#enq()
     //返回值：返回当前节点的 前置节点。
     private Node enq(final Node node) {
+        //条件队列转移过来的节点、慢路径入队的节点也要记录入队时间，否则优先级模式下永远不会老化
+        if (priorityQueueing && node.enqueuedAt == 0L)
+            node.enqueuedAt = System.nanoTime();
         //自旋入队，只有当前node入队成功后，才会跳出循环。
         for (;;) {
             Node t = tail;
@@ -343,6 +606,46 @@ public abstract class AbstractQueuedSynchronizer
         }
     }
 
+    /**
+     * Inserts the chain first..last into queue with a single tail CAS
+     * per attempt, initializing if necessary. The chain must already
+     * be linked through prev; next links are set only after the
+     * splice, because isOnSyncQueue takes a non-null next as proof
+     * that a node is on the queue.
+     *
+     * 链表内部只预先设好prev；next 在拼接到队尾之后才设置，
+     * 否则 isOnSyncQueue 看到 next != null 会认为节点已经在阻塞队列里了，其实还没拼上。
+     *
+     * @return first's predecessor
+     */
+    private Node enqAll(final Node first, final Node last) {
+        if (priorityQueueing) {
+            long now = System.nanoTime();
+            for (Node q = last; ; q = q.prev) {
+                q.enqueuedAt = now;
+                if (q == first)
+                    break;
+            }
+        }
+        for (;;) {
+            Node t = tail;
+            if (t == null) { // Must initialize
+                if (compareAndSetHead(new Node()))
+                    tail = head;
+            } else {
+                first.prev = t;
+                if (compareAndSetTail(t, last)) {
+                    t.next = first;
+                    for (Node q = last, p; q != first; q = p) {
+                        p = q.prev;
+                        p.next = q;
+                    }
+                    return t;
+                }
+            }
+        }
+    }
+
     /**
      * Creates and enqueues node for current thread and given mode.
      *
@@ -352,9 +655,23 @@ public abstract class AbstractQueuedSynchronizer
     //AQS#addWaiter
     //最终返回当前线程包装出来的node
     private Node addWaiter(Node mode) {
+        return addWaiter(mode, 0);
+    }
+
+    /**
+     * Creates and enqueues node for current thread, given mode and
+     * acquire priority.
+     *
+     * @param priority the priority, used only in priority mode
+     * @return the new node
+     */
+    private Node addWaiter(Node mode, int priority) {
         //Node.EXCLUSIVE
         //构建Node ，把当前线程封装到对象node中了
-        Node node = new Node(Thread.currentThread(), mode);
+        Node node = newWaiter(mode);
+        node.priority = priority;
+        if (priorityQueueing)
+            node.enqueuedAt = System.nanoTime();
         // Try the fast path of enq; backup to full enq on failure
         //快速入队
         //获取队尾节点 保存到pred变量中
@@ -409,6 +726,12 @@ public abstract class AbstractQueuedSynchronizer
         if (ws < 0)//-1 Signal  改成零的原因：因为当前节点已经完成喊后继节点的任务了..
             compareAndSetWaitStatus(node, ws, 0);
 
+        //优先级模式：不唤醒后继节点，而是唤醒整个队列中优先级最高的等待者
+        if (priorityQueueing) {
+            unparkBest();
+            return;
+        }
+
         //s是当前节点 的第一个后继节点。
         Node s = node.next;
 
@@ -432,8 +755,123 @@ public abstract class AbstractQueuedSynchronizer
 
 
         //如果找到合适的可以被唤醒的node，则唤醒.. 找不到 啥也不做。
-        if (s != null)
+        if (s != null) {
+            ContentionProfile prof;
+            if ((prof = profile) != null)
+                prof.unparked();
             LockSupport.unpark(s.thread);
+        }
+    }
+
+    /*
+     * Priority queueing.  In priority mode every exclusive waiter
+     * carries a priority (see acquire(int, int)) and a release wakes
+     * the waiter with the highest effective priority instead of
+     * head's successor.  The effective priority is the priority plus
+     * one for every AGING_NANOS spent queued, so a waiter of any
+     * priority is eventually served; ties go to the longer waiter.
+     * Queue time is stamped on every way into the queue (addWaiter,
+     * enq for signalled and timed-out condition waiters, enqAll for
+     * signalAll); a waiter queued before the mode was turned on counts
+     * from that moment.
+     *
+     * The picked waiter is recorded in chosen.  It may acquire from
+     * anywhere in the queue; head.next may only acquire while nobody
+     * is chosen, which covers a release that scanned before head.next
+     * was linked.  A waiter that acquires from behind head.next leaves
+     * the queue the way a cancelled node does and head stays put.
+     * Because head.next no longer re-arms head's SIGNAL in this mode,
+     * release scans whenever the queue is non-empty.  Each release
+     * walks the whole queue, so this mode suits modest queues.
+     *
+     * Only exclusive acquires honour priority; the mode is meant for
+     * exclusive-only synchronizers.
+     *
+     * 优先级模式：release时扫描整个队列，唤醒“优先级 + 等待时长/AGING_NANOS”最大的等待者，
+     * 排队时间越长优先级越高，不会饿死。被选中的节点可以在队列任意位置抢锁，
+     * 抢到后像取消的节点一样离开队列，head不动。
+     */
+
+    /** Waiting this long raises a waiter's priority by one. */
+    static final long AGING_NANOS = 10L * 1000L * 1000L;
+
+    /**
+     * Turns priority queueing on or off. Meant for exclusive-only
+     * synchronizers; should be set before the synchronizer is used.
+     *
+     * @param on whether releases serve the highest-priority waiter
+     */
+    protected final void setPriorityQueueing(boolean on) {
+        if (on && !priorityQueueing)
+            priorityQueueingSince = System.nanoTime();
+        priorityQueueing = on;
+        if (!on)
+            chosen = null;
+    }
+
+    /**
+     * Picks the waiter with the highest effective priority, records
+     * it in chosen and unparks it.
+     */
+    private void unparkBest() {
+        final long now = System.nanoTime();
+        final long since = priorityQueueingSince;
+        final Node h = head;
+        Node best = null;
+        Thread w = null;
+        long bestRank = Long.MIN_VALUE;
+        for (Node t = tail; t != null && t != h; t = t.prev) {
+            Thread tt = t.thread;
+            if (t.waitStatus <= 0 && tt != null) {
+                //没有入队时间的节点是开启优先级模式之前就在排队的，从开启时算起
+                long at = t.enqueuedAt;
+                if (at == 0L)
+                    at = since;
+                long rank = t.priority + (now - at) / AGING_NANOS;
+                //从队尾往前扫描，相同优先级时选更靠前（等得更久）的
+                if (rank >= bestRank) {
+                    best = t;
+                    w = tt;
+                    bestRank = rank;
+                }
+            }
+        }
+        chosen = best;
+        if (w != null) {
+            ContentionProfile prof;
+            if ((prof = profile) != null)
+                prof.unparked();
+            LockSupport.unpark(w);
+        }
+    }
+
+    /**
+     * Returns whether node, whose predecessor is p, may try to
+     * acquire. Outside priority mode that is p == head.
+     */
+    private boolean mayAcquire(Node p, Node node) {
+        Node c = chosen;
+        if (c == node) {
+            //被选中的节点只尝试一次，失败了就等下一次release重新挑选
+            chosen = null;
+            return true;
+        }
+        return c == null && p == head;
+    }
+
+    /**
+     * Takes node, which acquired from behind head.next in priority
+     * mode, out of the queue: it is marked like a cancelled node and
+     * unlinked lazily by its neighbours, or here if it is the tail.
+     */
+    private void leaveQueue(Node node) {
+        node.thread = null;
+        Node pred = node.prev;
+        while (pred.waitStatus > 0)
+            node.prev = pred = pred.prev;
+        node.waitStatus = Node.CANCELLED;
+        if (node == tail && compareAndSetTail(node, pred))
+            compareAndSetNext(pred, node, null);
     }
 
     /**
@@ -460,6 +898,8 @@ public abstract class AbstractQueuedSynchronizer
                 if (ws == Node.SIGNAL) {
                     if (!compareAndSetWaitStatus(h, Node.SIGNAL, 0))
                         continue;            // loop to recheck cases
+                    if (wakeFanOut)
+                        startFanOut(h);
                     unparkSuccessor(h);
                 }
                 else if (ws == 0 &&
@@ -471,6 +911,99 @@ public abstract class AbstractQueuedSynchronizer
         }
     }
 
+    /*
+     * Shared wakeup fan-out.  Normally a shared release wakes only
+     * head's successor, which acquires, becomes head and wakes the
+     * next one, so waking n waiters costs n unpark latencies in a row.
+     * In fan-out mode the release only marks head's successor, which
+     * counts the nodes queued behind head once it runs, so the
+     * releasing thread does constant work.  Every woken node with
+     * span s then wakes the node s/2 places after it, handing over the
+     * upper half of its span, and repeats on the lower half.  All n
+     * waiters are awake after about log2(n) rounds of unparks plus two
+     * walks of the queue, which are cheap next to an unpark.
+     *
+     * A woken node does not wait for its turn at head: it calls
+     * tryAcquireShared right away and, if that succeeds from behind
+     * head, leaves the queue like a cancelled node (see leaveFanOut).
+     * Waiters may thus pass ahead of earlier ones, which is why fan-out
+     * is only for synchronizers that let every waiter through once
+     * open.  A woken node whose tryAcquireShared fails drops back to
+     * parking.  Nodes whose waker could not reach them (cancelled or
+     * not yet linked) are woken by the usual chain.
+     *
+     * 共享模式的树形唤醒：release时把队列长度交给head.next，每个被唤醒的节点
+     * 唤醒自己负责区间中点位置的节点，把后一半区间交给它，自己继续处理前一半，
+     * 大约log2(n)轮unpark之后所有等待者都醒了。队列长度由第一个被唤醒的节点自己数，释放线程只打个标记。
+     * 醒来的节点不再等排到队头，直接tryAcquireShared，成功了就像取消的节点一样离开队列。
+     */
+
+    /**
+     * Turns tree fan-out of shared wakeups on or off. Meant for
+     * shared-only synchronizers whose waiters can all pass once
+     * released, such as latches and barriers.
+     *
+     * @param on whether shared releases fan out
+     */
+    protected final void setSharedWakeFanOut(boolean on) {
+        wakeFanOut = on;
+    }
+
+    /** wakeSpan of a node that has to count the queue behind it. */
+    static final int SPAN_UNCOUNTED = -1;
+
+    /**
+     * Called by doReleaseShared before waking h's successor: tells it
+     * to count and wake the queue behind h, unless it is already part
+     * of a fan-out.
+     */
+    static void startFanOut(Node h) {
+        Node s = h.next;
+        if (s != null && s.wakeSpan == 0)
+            s.wakeSpan = SPAN_UNCOUNTED;
+    }
+
+    /**
+     * Wakes the nodes node is responsible for, halving its span each
+     * round, and leaves node with a span of one.
+     */
+    static void fanOut(Node node) {
+        int span = node.wakeSpan;
+        if (span == 1)
+            return;
+        if (span == SPAN_UNCOUNTED) {
+            span = 0;
+            for (Node q = node; q != null && span < Integer.MAX_VALUE; q = q.next)
+                ++span;
+        }
+        while (span > 1) {
+            int half = span >>> 1;
+            Node c = node;
+            for (int i = 0; i < half && c != null; ++i)
+                c = c.next;
+            //后面的节点还没链接上，剩下的交给正常的唤醒链
+            if (c == null)
+                break;
+            c.wakeSpan = span - half;
+            Thread t = c.thread;
+            if (t != null)
+                LockSupport.unpark(t);
+            span = half;
+        }
+        node.wakeSpan = 1;
+    }
+
+    /**
+     * Takes node, which acquired from behind head after a fan-out
+     * woke it, out of the queue, and wakes its successor: that one may
+     * have parked counting on node to signal it.
+     */
+    private void leaveFanOut(Node node) {
+        leaveQueue(node);
+        if (node.next != null)
+            unparkSuccessor(node);
+    }
+
     /**
      * Sets head of queue, and checks if successor may be waiting
      * in shared mode, if so propagating if either propagate > 0 or
@@ -533,6 +1066,12 @@ public abstract class AbstractQueuedSynchronizer
 
         //将当前node状态设置为 取消状态  1
         node.waitStatus = Node.CANCELLED;
+        ContentionProfile prof;
+        if ((prof = profile) != null)
+            prof.cancelled();
+        //被选中但还没来得及抢锁就取消了，重新挑选一个
+        if (priorityQueueing && chosen == node)
+            unparkBest();
         /**
          * 当前取消排队的node所在 队列的位置不同，执行的出队策略是不一样的，一共分为三种情况：
          * 1.当前node是队尾  tail -> node
@@ -596,7 +1135,7 @@ public abstract class AbstractQueuedSynchronizer
      * 参数二：node 当前线程对应node
      * 返回值：boolean  true 表示当前线程需要挂起..
      */
-    private static boolean shouldParkAfterFailedAcquire(Node pred, Node node) {
+    static boolean shouldParkAfterFailedAcquire(Node pred, Node node) {
         //获取前置节点的状态
         //waitStatus：0 默认状态 new Node() ； -1 Signal状态，表示当前节点释放锁之后会唤醒它的第一个后继节点； >0 表示当前节点是CANCELED状态
         int ws = pred.waitStatus;
@@ -638,8 +1177,23 @@ public abstract class AbstractQueuedSynchronizer
     //AQS#parkAndCheckInterrupt
     //park当前线程 将当前线程 挂起，唤醒后返回当前线程 是否为 中断信号 唤醒。
     private final boolean parkAndCheckInterrupt() {
+        ContentionProfile prof;
+        if ((prof = profile) != null)
+            prof.parked();
+        //挂起期间只保留开始时间，事件对象在唤醒之后才创建
+        final long t0 = System.nanoTime();
         LockSupport.park(this);
-        return Thread.interrupted();
+        boolean interrupted = Thread.interrupted();
+        if (jfrOn() && EventTypes.ACQUIRE_BLOCKED.isEnabled()) {
+            AcquireBlockedEvent event = new AcquireBlockedEvent();
+            if (event.shouldCommit()) {
+                event.synchronizerClass = getClass();
+                event.parkedNanos = System.nanoTime() - t0;
+                event.interrupted = interrupted;
+                event.commit();
+            }
+        }
+        return interrupted;
     }
 
     /*
@@ -667,6 +1221,12 @@ public abstract class AbstractQueuedSynchronizer
     //参数一：node 就是当前线程包装出来的node，且当前时刻 已经入队成功了..
     //参数二：当前线程抢占资源成功后，设置state值时 会用到。
     final boolean acquireQueued(final Node node, int arg) {
+        //head.next 在park之前最多自旋重试的次数，按照最近的平均持锁时间计算
+        int spins = acquireSpins();
+        //开启了竞争统计时，记录进入排队的时间
+        final ContentionProfile prof = profile;
+        final long t0 = (prof == null) ? 0L : prof.enter();
+        final long queuedAt = System.nanoTime();
         //true 表示当前线程抢占锁成功，普通情况下【lock】 当前线程早晚会拿到锁..
         //false 表示失败，需要执行出队的逻辑... （回头讲 响应中断的lock方法时再讲。）
         boolean failed = true;
@@ -685,12 +1245,27 @@ public abstract class AbstractQueuedSynchronizer
                 //条件二：tryAcquire(arg)
                 //成立：说明head对应的线程 已经释放锁了，head.next节点对应的线程，正好获取到锁了..
                 //不成立：说明head对应的线程  还没释放锁呢...head.next仍然需要被park。。
-                if (p == head && tryAcquire(arg)) {
+                if (mayAcquire(p, node) && tryAcquire(arg)) {
+                    final long now = System.nanoTime();
+                    holdStart = now;
+                    if (jfrOn() && EventTypes.ACQUIRE_GRANTED.isEnabled()) {
+                        AcquireGrantedEvent granted = new AcquireGrantedEvent();
+                        if (granted.shouldCommit()) {
+                            granted.synchronizerClass = getClass();
+                            granted.queuedNanos = now - queuedAt;
+                            granted.commit();
+                        }
+                    }
                     //拿到锁之后需要做什么？
                     //设置自己为head节点。
-                    setHead(node);
-                    //将上个线程对应的node的next引用置为null。协助老的head出队..
-                    p.next = null; // help GC
+                    if (p == head) {
+                        setHead(node);
+                        //将上个线程对应的node的next引用置为null。协助老的head出队..
+                        p.next = null; // help GC
+                        recycle(p);
+                    }
+                    else
+                        leaveQueue(node);
                     //当前线程 获取锁 过程中..没有异常
                     failed = false;
                     //返回当前线程的中断标记..
@@ -700,6 +1275,16 @@ public abstract class AbstractQueuedSynchronizer
                 //返回值：true -> 当前线程需要 挂起    false -> 不需要..
                 //parkAndCheckInterrupt()  这个方法什么作用？ 挂起当前线程，并且唤醒之后 返回 当前线程的 中断标记
                 // （唤醒：1.正常唤醒 其它线程 unpark 2.其它线程给当前挂起的线程 一个中断信号..）
+                //已经是head.next了，持锁时间又很短，先自旋重试，不去park
+                if (p == head && spins > 0) {
+                    //TTAS：只读state，等它变了才回去tryAcquire（CAS），自旋时不去写持锁线程释放时要写的缓存行。
+                    //state没变，tryAcquire 也不会成功；不假设0就是空闲，所以共享、自定义state的同步器也适用
+                    int s = getState();
+                    do {
+                        Thread.onSpinWait();
+                    } while (--spins > 0 && getState() == s);
+                    continue;
+                }
                 if (shouldParkAfterFailedAcquire(p, node) &&
                         parkAndCheckInterrupt())
                     //interrupted == true 表示当前node对应的线程是被 中断信号唤醒的...
@@ -708,6 +1293,8 @@ public abstract class AbstractQueuedSynchronizer
         } finally {
             if (failed)
                 cancelAcquire(node);
+            if (prof != null)
+                prof.exit(t0, failed);
         }
     }
 
@@ -719,12 +1306,19 @@ public abstract class AbstractQueuedSynchronizer
         throws InterruptedException {
         final Node node = addWaiter(Node.EXCLUSIVE);
         boolean failed = true;
+        final ContentionProfile prof = profile;
+        final long t0 = (prof == null) ? 0L : prof.enter();
         try {
             for (;;) {
                 final Node p = node.predecessor();
-                if (p == head && tryAcquire(arg)) {
-                    setHead(node);
-                    p.next = null; // help GC
+                if (mayAcquire(p, node) && tryAcquire(arg)) {
+                    if (p == head) {
+                        setHead(node);
+                        p.next = null; // help GC
+                        recycle(p);
+                    }
+                    else
+                        leaveQueue(node);
                     failed = false;
                     return;
                 }
@@ -735,6 +1329,8 @@ public abstract class AbstractQueuedSynchronizer
         } finally {
             if (failed)
                 cancelAcquire(node);
+            if (prof != null)
+                prof.exit(t0, failed);
         }
     }
 
@@ -752,12 +1348,20 @@ public abstract class AbstractQueuedSynchronizer
         final long deadline = System.nanoTime() + nanosTimeout;
         final Node node = addWaiter(Node.EXCLUSIVE);
         boolean failed = true;
+        final ContentionProfile prof = profile;
+        final long t0 = (prof == null) ? 0L : prof.enter();
+        DeadlineWheel.Timeout timer = null;
         try {
             for (;;) {
                 final Node p = node.predecessor();
-                if (p == head && tryAcquire(arg)) {
-                    setHead(node);
-                    p.next = null; // help GC
+                if (mayAcquire(p, node) && tryAcquire(arg)) {
+                    if (p == head) {
+                        setHead(node);
+                        p.next = null; // help GC
+                        recycle(p);
+                    }
+                    else
+                        leaveQueue(node);
                     failed = false;
                     return true;
                 }
@@ -766,13 +1370,17 @@ public abstract class AbstractQueuedSynchronizer
                     return false;
                 if (shouldParkAfterFailedAcquire(p, node) &&
                     nanosTimeout > spinForTimeoutThreshold)
-                    LockSupport.parkNanos(this, nanosTimeout);
+                    timer = parkUntil(timer, deadline, nanosTimeout);
                 if (Thread.interrupted())
                     throw new InterruptedException();
             }
         } finally {
+            if (timer != null)
+                timer.cancel();
             if (failed)
                 cancelAcquire(node);
+            if (prof != null)
+                prof.exit(t0, failed);
         }
     }
 
@@ -783,20 +1391,41 @@ public abstract class AbstractQueuedSynchronizer
     private void doAcquireShared(int arg) {
         final Node node = addWaiter(Node.SHARED);
         boolean failed = true;
+        final ContentionProfile prof = profile;
+        final long t0 = (prof == null) ? 0L : prof.enter();
+        final long queuedAt = System.nanoTime();
         try {
             boolean interrupted = false;
             for (;;) {
+                if (node.wakeSpan != 0)
+                    fanOut(node);
                 final Node p = node.predecessor();
-                if (p == head) {
+                //被树形唤醒的节点不等排到队头，直接尝试获取
+                if (p == head || node.wakeSpan != 0) {
                     int r = tryAcquireShared(arg);
                     if (r >= 0) {
-                        setHeadAndPropagate(node, r);
-                        p.next = null; // help GC
+                        if (p == head) {
+                            setHeadAndPropagate(node, r);
+                            p.next = null; // help GC
+                            recycle(p);
+                        }
+                        else
+                            leaveFanOut(node);
+                        if (jfrOn() && EventTypes.ACQUIRE_GRANTED.isEnabled()) {
+                            AcquireGrantedEvent granted = new AcquireGrantedEvent();
+                            if (granted.shouldCommit()) {
+                                granted.synchronizerClass = getClass();
+                                granted.queuedNanos = System.nanoTime() - queuedAt;
+                                granted.shared = true;
+                                granted.commit();
+                            }
+                        }
                         if (interrupted)
                             selfInterrupt();
                         failed = false;
                         return;
                     }
+                    node.wakeSpan = 0;
                 }
                 if (shouldParkAfterFailedAcquire(p, node) &&
                     parkAndCheckInterrupt())
@@ -805,6 +1434,8 @@ public abstract class AbstractQueuedSynchronizer
         } finally {
             if (failed)
                 cancelAcquire(node);
+            if (prof != null)
+                prof.exit(t0, failed);
         }
     }
 
@@ -816,17 +1447,28 @@ public abstract class AbstractQueuedSynchronizer
         throws InterruptedException {
         final Node node = addWaiter(Node.SHARED);
         boolean failed = true;
+        final ContentionProfile prof = profile;
+        final long t0 = (prof == null) ? 0L : prof.enter();
         try {
             for (;;) {
+                if (node.wakeSpan != 0)
+                    fanOut(node);
                 final Node p = node.predecessor();
-                if (p == head) {
+                //被树形唤醒的节点不等排到队头，直接尝试获取
+                if (p == head || node.wakeSpan != 0) {
                     int r = tryAcquireShared(arg);
                     if (r >= 0) {
-                        setHeadAndPropagate(node, r);
-                        p.next = null; // help GC
+                        if (p == head) {
+                            setHeadAndPropagate(node, r);
+                            p.next = null; // help GC
+                            recycle(p);
+                        }
+                        else
+                            leaveFanOut(node);
                         failed = false;
                         return;
                     }
+                    node.wakeSpan = 0;
                 }
                 if (shouldParkAfterFailedAcquire(p, node) &&
                     parkAndCheckInterrupt())
@@ -835,6 +1477,8 @@ public abstract class AbstractQueuedSynchronizer
         } finally {
             if (failed)
                 cancelAcquire(node);
+            if (prof != null)
+                prof.exit(t0, failed);
         }
     }
 
@@ -852,30 +1496,46 @@ public abstract class AbstractQueuedSynchronizer
         final long deadline = System.nanoTime() + nanosTimeout;
         final Node node = addWaiter(Node.SHARED);
         boolean failed = true;
+        final ContentionProfile prof = profile;
+        final long t0 = (prof == null) ? 0L : prof.enter();
+        DeadlineWheel.Timeout timer = null;
         try {
             for (;;) {
+                if (node.wakeSpan != 0)
+                    fanOut(node);
                 final Node p = node.predecessor();
-                if (p == head) {
+                //被树形唤醒的节点不等排到队头，直接尝试获取
+                if (p == head || node.wakeSpan != 0) {
                     int r = tryAcquireShared(arg);
                     if (r >= 0) {
-                        setHeadAndPropagate(node, r);
-                        p.next = null; // help GC
+                        if (p == head) {
+                            setHeadAndPropagate(node, r);
+                            p.next = null; // help GC
+                            recycle(p);
+                        }
+                        else
+                            leaveFanOut(node);
                         failed = false;
                         return true;
                     }
+                    node.wakeSpan = 0;
                 }
                 nanosTimeout = deadline - System.nanoTime();
                 if (nanosTimeout <= 0L)
                     return false;
                 if (shouldParkAfterFailedAcquire(p, node) &&
                     nanosTimeout > spinForTimeoutThreshold)
-                    LockSupport.parkNanos(this, nanosTimeout);
+                    timer = parkUntil(timer, deadline, nanosTimeout);
                 if (Thread.interrupted())
                     throw new InterruptedException();
             }
         } finally {
+            if (timer != null)
+                timer.cancel();
             if (failed)
                 cancelAcquire(node);
+            if (prof != null)
+                prof.exit(t0, failed);
         }
     }
 
@@ -1041,6 +1701,23 @@ public abstract class AbstractQueuedSynchronizer
             selfInterrupt();
     }
 
+    /**
+     * Acquires in exclusive mode with the given priority, ignoring
+     * interrupts. Outside priority mode this is the same as
+     * {@link #acquire(int)}; in priority mode a queued waiter with a
+     * higher priority is served before one with a lower priority,
+     * subject to aging.
+     *
+     * @param arg the acquire argument
+     * @param priority the priority; larger is served first
+     * @see #setPriorityQueueing
+     */
+    public final void acquire(int arg, int priority) {
+        if (!tryAcquire(arg) &&
+            acquireQueued(addWaiter(Node.EXCLUSIVE, priority), arg))
+            selfInterrupt();
+    }
+
     /**
      * Acquires in exclusive mode, aborting if interrupted.
      * Implemented by first checking interrupt status, then invoking
@@ -1101,9 +1778,23 @@ public abstract class AbstractQueuedSynchronizer
     //AQS#release方法
     //ReentrantLock.unlock() -> sync.release()【AQS提供的release】
     public final boolean release(int arg) {
+        //先取出持锁开始时间并清零：完全释放之后新的owner会写这个字段
+        long start = holdStart;
+        if (start != 0L)
+            holdStart = 0L;
         //尝试释放锁，tryRelease 返回true 表示当前线程已经完全释放锁
         //返回false，说明当前线程尚未完全释放锁..
-        if (tryRelease(arg)) {
+        boolean released = false;
+        try {
+            released = tryRelease(arg);
+        } finally {
+            //没有完全释放（重入），或者不是持锁线程、tryRelease抛了异常：恢复开始时间
+            if (!released && start != 0L)
+                holdStart = start;
+        }
+        if (released) {
+            if (start != 0L)
+                recordHold(start);
 
             //head什么情况下会被创建出来？
             //当持锁线程未释放线程时，且持锁期间 有其它线程想要获取锁时，其它线程发现获取不了锁，而且队列是空队列，此时后续线程会为当前持锁中的
@@ -1112,12 +1803,12 @@ public abstract class AbstractQueuedSynchronizer
 
             //条件一:成立，说明队列中的head节点已经初始化过了，ReentrantLock 在使用期间 发生过 多线程竞争了...
             //条件二：条件成立，说明当前head后面一定插入过node节点。
-            if (h != null && h.waitStatus != 0)
+            if (h != null &&
+                (h.waitStatus != 0 || (priorityQueueing && h != tail)))
                 //唤醒后继节点..
                 unparkSuccessor(h);
             return true;
         }
-
         return false;
     }
 
@@ -1474,6 +2165,438 @@ public abstract class AbstractQueuedSynchronizer
     }
 
 
+    // Contention profiling
+
+    /**
+     * Contention statistics of one synchronizer, collected while
+     * profiling is on (see {@link #setContentionProfiling}). Counters
+     * are striped or per-bucket, so recording adds a couple of
+     * System.nanoTime calls and uncontended increments to each
+     * queued acquire and nothing to acquires that never queue.
+     *
+     * 锁竞争统计：只有排队的acquire才会记录，不排队直接拿到锁的路径没有任何开销。
+     */
+    public static final class ContentionProfile {
+        /** Number of longest waits remembered. */
+        static final int TOP_WAITERS = 8;
+
+        /** Wait histogram: bucket b counts waits of [2^(b-1), 2^b) ns. */
+        private final AtomicLongArray waitHistogram = new AtomicLongArray(64);
+        private final LongAdder acquires = new LongAdder();
+        private final LongAdder totalWaitNanos = new LongAdder();
+        private final LongAdder parks = new LongAdder();
+        private final LongAdder unparks = new LongAdder();
+        private final LongAdder cancels = new LongAdder();
+        /** Threads currently inside an acquire loop. */
+        private final LongAdder queued = new LongAdder();
+        private final AtomicInteger queueHighWater = new AtomicInteger();
+
+        /*
+         * No monitors here: a virtual thread contending for a monitor
+         * pins its carrier, and these hooks run on every queued acquire.
+         * 这里不用synchronized：虚拟线程竞争monitor时会钉住载体线程。
+         */
+
+        /** Set while the top waiters are being updated or read. */
+        private final AtomicInteger topBusy = new AtomicInteger();
+        /** Longest waits, sorted descending; guarded by topBusy. */
+        private final long[] topWaitNanos = new long[TOP_WAITERS];
+        private final String[] topWaiters = new String[TOP_WAITERS];
+        /** Smallest remembered wait; racy pre-check for recordTop. */
+        private volatile long topFloor;
+
+        /** Called on entering an acquire loop; returns the start time. */
+        long enter() {
+            queued.increment();
+            return System.nanoTime();
+        }
+
+        /** Called on leaving an acquire loop started at start. */
+        void exit(long start, boolean failed) {
+            queued.decrement();
+            if (failed)
+                return;
+            long w = System.nanoTime() - start;
+            acquires.increment();
+            totalWaitNanos.add(w);
+            waitHistogram.incrementAndGet(64 - Long.numberOfLeadingZeros(Math.max(w, 0L)) & 63);
+            if (w > topFloor)
+                recordTop(w, Thread.currentThread().getName());
+        }
+
+        private void recordTop(long w, String who) {
+            lockTop();
+            try {
+                int i = TOP_WAITERS - 1;
+                if (w <= topWaitNanos[i])
+                    return;
+                for (; i > 0 && topWaitNanos[i - 1] < w; --i) {
+                    topWaitNanos[i] = topWaitNanos[i - 1];
+                    topWaiters[i] = topWaiters[i - 1];
+                }
+                topWaitNanos[i] = w;
+                topWaiters[i] = who;
+                topFloor = topWaitNanos[TOP_WAITERS - 1];
+            } finally {
+                topBusy.set(0);
+            }
+        }
+
+        /**
+         * Spins for topBusy, yielding between tries. The section it
+         * guards is a few stores, and Thread.yield lets a virtual
+         * thread give up its carrier instead of pinning it.
+         */
+        private void lockTop() {
+            while (!topBusy.compareAndSet(0, 1))
+                Thread.yield();
+        }
+
+        /**
+         * Called before a queued waiter parks. The queue high water is
+         * sampled here rather than in enter, so that the acquire path
+         * only touches striped counters and the sum is paid by threads
+         * that are about to block anyway.
+         */
+        void parked() {
+            parks.increment();
+            // 排队人数峰值只在park之前统计：enter只累加条带计数，求和留给马上要挂起的线程
+            int q = (int) queued.sum(), h;
+            while (q > (h = queueHighWater.get()) &&
+                   !queueHighWater.compareAndSet(h, q))
+                ;
+        }
+
+        void unparked()  { unparks.increment(); }
+        void cancelled() { cancels.increment(); }
+
+        /** Number of queued acquires that succeeded. */
+        public long getAcquireCount()     { return acquires.sum(); }
+        /** Sum of the waits of those acquires, in nanoseconds. */
+        public long getTotalWaitNanos()   { return totalWaitNanos.sum(); }
+        public long getParkCount()        { return parks.sum(); }
+        public long getUnparkCount()      { return unparks.sum(); }
+        public long getCancelCount()      { return cancels.sum(); }
+        /** Most threads seen in acquire loops at once, sampled on park. */
+        public int getQueueHighWater()    { return queueHighWater.get(); }
+
+        /**
+         * Returns the wait histogram; element b counts waits of at
+         * least 2^(b-1) and less than 2^b nanoseconds.
+         */
+        public long[] getWaitHistogram() {
+            long[] h = new long[waitHistogram.length()];
+            for (int b = 0; b < h.length; ++b)
+                h[b] = waitHistogram.get(b);
+            return h;
+        }
+
+        /**
+         * Returns the longest waits seen as "thread=nanos" strings,
+         * longest first.
+         */
+        public String[] getLongestWaiters() {
+            ArrayList<String> list = new ArrayList<String>();
+            lockTop();
+            try {
+                for (int i = 0; i < TOP_WAITERS && topWaiters[i] != null; ++i)
+                    list.add(topWaiters[i] + "=" + topWaitNanos[i]);
+            } finally {
+                topBusy.set(0);
+            }
+            return list.toArray(new String[list.size()]);
+        }
+
+        public String toString() {
+            long n = getAcquireCount();
+            return "[acquires = " + n +
+                ", avgWaitNanos = " + (n == 0L ? 0L : getTotalWaitNanos() / n) +
+                ", parks = " + getParkCount() +
+                ", unparks = " + getUnparkCount() +
+                ", cancels = " + getCancelCount() +
+                ", queueHighWater = " + getQueueHighWater() + "]";
+        }
+    }
+
+    /**
+     * Turns contention profiling of this synchronizer on or off.
+     * Turning it on starts a fresh profile.
+     *
+     * @param on whether to profile
+     */
+    public final void setContentionProfiling(boolean on) {
+        profile = on ? new ContentionProfile() : null;
+    }
+
+    /**
+     * Returns the current contention profile, or {@code null} if
+     * profiling is off.
+     *
+     * @return the profile
+     */
+    public final ContentionProfile getContentionProfile() {
+        return profile;
+    }
+
+
+    // Deadline wheel
+
+    /**
+     * A hashed timer wheel shared by all timed acquires. Instead of
+     * each waiter arming its own OS timer with parkNanos, a waiter
+     * drops a Timeout into the bucket for its deadline tick and parks
+     * untimed; one daemon ticker wakes once per tick, drains the due
+     * bucket and unparks every expired waiter in the batch. Entries
+     * due more than a wheel turn out stay in their bucket and are
+     * looked at once per turn.
+     *
+     * <p>Timeouts are rounded up to the tick, so a timed acquire may
+     * return up to about a tick late; waits shorter than
+     * MIN_WHEEL_NANOS bypass the wheel. The ticker parks untimed while
+     * the wheel is empty.
+     *
+     * 时间轮：所有超时等待共用一个后台线程，每个tick醒来一次，把到期桶里的等待者一批唤醒，
+     * 不再是每个等待者各自一个系统定时器。超时会向上取整到tick，最多晚一个tick左右。
+     */
+    static final class DeadlineWheel implements Runnable {
+        /** Tick length: one millisecond. */
+        static final long TICK_NANOS = 1000L * 1000L;
+        /** Number of buckets, a power of two. */
+        static final int WHEEL_SIZE = 512;
+        /** Waits shorter than this park with their own timer. */
+        static final long MIN_WHEEL_NANOS = 4L * TICK_NANOS;
+
+        static final DeadlineWheel INSTANCE = new DeadlineWheel();
+
+        /** A waiter's registration. Cancelled entries are dropped lazily. */
+        static final class Timeout {
+            final Thread thread;
+            final long deadline;
+            /** Set when the entry fired or the wait ended. */
+            volatile boolean done;
+            /** Bucket link; written only while the entry is unpublished. */
+            Timeout next;
+
+            Timeout(Thread thread, long deadline) {
+                this.thread = thread;
+                this.deadline = deadline;
+            }
+
+            void cancel() {
+                done = true;
+            }
+        }
+
+        /** Treiber stacks of entries, one per bucket. */
+        private final AtomicReferenceArray<Timeout> buckets =
+            new AtomicReferenceArray<Timeout>(WHEEL_SIZE);
+        /** Entries sitting in buckets, live or cancelled. */
+        private final AtomicInteger pending = new AtomicInteger();
+        /** Tick zero. */
+        private final long origin = System.nanoTime();
+        /** Last tick drained; written by the ticker only. */
+        private volatile long cursor;
+        private final AtomicReference<Thread> ticker = new AtomicReference<Thread>();
+
+        /**
+         * Registers the current thread to be unparked at deadline.
+         * Returns null if the deadline is too close to place safely,
+         * in which case the caller should use parkNanos.
+         */
+        static Timeout schedule(long deadline) {
+            return INSTANCE.add(new Timeout(Thread.currentThread(), deadline));
+        }
+
+        /** Rounds t up to a tick. */
+        private long tickOf(long t) {
+            return (t - origin + TICK_NANOS - 1L) / TICK_NANOS;
+        }
+
+        private Timeout add(Timeout e) {
+            long target = Math.max(tickOf(e.deadline), cursor + 1L);
+            if (pending.getAndIncrement() == 0)
+                startOrWake();
+            push(e, target);
+            //入桶期间ticker已经越过了目标tick，这个桶可能要等一整圈才会再处理
+            if (cursor >= target) {
+                e.done = true;
+                return null;
+            }
+            return e;
+        }
+
+        private void push(Timeout e, long tick) {
+            int i = (int)(tick & (WHEEL_SIZE - 1));
+            Timeout h;
+            do {
+                e.next = h = buckets.get(i);
+            } while (!buckets.compareAndSet(i, h, e));
+        }
+
+        private void startOrWake() {
+            Thread t = ticker.get();
+            if (t != null)
+                LockSupport.unpark(t);
+            else {
+                //不用synchronized，避免虚拟线程钉住载体线程
+                t = new Thread(this, "AQS-DeadlineWheel");
+                t.setDaemon(true);
+                if (ticker.compareAndSet(null, t))
+                    t.start();
+                else
+                    LockSupport.unpark(ticker.get());
+            }
+        }
+
+        public void run() {
+            for (;;) {
+                if (pending.get() == 0)
+                    LockSupport.park(this);
+                else
+                    LockSupport.parkNanos(this, TICK_NANOS);
+                long now = System.nanoTime();
+                long last = (now - origin) / TICK_NANOS;
+                long t = cursor;
+                //空闲了很久，每个桶最多处理一次就够了
+                if (last - t > WHEEL_SIZE)
+                    t = last - WHEEL_SIZE;
+                while (t < last) {
+                    drain(++t, now);
+                    cursor = t;
+                }
+            }
+        }
+
+        /**
+         * Unparks the expired entries of tick's bucket and puts the
+         * others back, each in the bucket of its own tick.
+         */
+        private void drain(long tick, long now) {
+            Timeout e = buckets.getAndSet((int)(tick & (WHEEL_SIZE - 1)), null);
+            while (e != null) {
+                Timeout next = e.next;
+                if (e.done)
+                    pending.decrementAndGet();
+                else if (e.deadline - now <= 0L) {
+                    e.done = true;
+                    pending.decrementAndGet();
+                    LockSupport.unpark(e.thread);
+                }
+                else
+                    push(e, Math.max(tickOf(e.deadline), tick + 1L));
+                e = next;
+            }
+        }
+    }
+
+
+    // Flight Recorder events
+
+    /*
+     * JFR events for blocking in synchronizers built on this class.
+     * Every event carries the concrete synchronizer class, so a
+     * recording shows which custom locks stall threads. Events are
+     * created on the slow paths only and committed only when
+     * recording.
+     *
+     * Blocking events are created after the thread wakes up, with the
+     * wait carried in a timespan field rather than the event duration.
+     * A parked thread, in particular a virtual thread whose stack is
+     * parked on the heap, then retains nothing but its Node and a few
+     * primitives, so a million blocked waiters cost a million Nodes.
+     * The price is that their duration is zero, so JFR's threshold
+     * setting does not filter them; filter on the timespan field
+     * when reading the recording instead.
+     * An event object is only allocated while JFR is initialized and
+     * its type is enabled in some recording (see jfrOn and EventTypes),
+     * so without JFR the slow paths allocate nothing for events.
+     * JFR事件：只在需要排队/挂起的慢路径上创建，开启录制才会提交。
+     * 没有开启对应事件的录制时，连事件对象都不创建。
+     * 阻塞类事件在唤醒之后才创建，等待时长放在字段里，挂起期间线程只持有Node。
+     * 事件本身的持续时间是0，JFR的阈值设置对它们不起作用，分析时按等待时长字段过滤。
+     */
+
+    /**
+     * Whether JFR is up. Checked before EventTypes is touched: looking
+     * up an event type initializes JFR, which takes some hundreds of
+     * milliseconds, and before JFR is initialized no recording exists
+     * that could enable an event.
+     *
+     * JFR没有初始化时不去碰EventTypes：查事件类型会初始化整个JFR，要几百毫秒。
+     */
+    static boolean jfrOn() {
+        return FlightRecorder.isInitialized();
+    }
+
+    /**
+     * Event types, looked up on the first slow path after JFR is up
+     * rather than when this class is loaded.
+     */
+    static final class EventTypes {
+        static final EventType ACQUIRE_BLOCKED =
+            EventType.getEventType(AcquireBlockedEvent.class);
+        static final EventType ACQUIRE_GRANTED =
+            EventType.getEventType(AcquireGrantedEvent.class);
+        static final EventType CONDITION_AWAIT =
+            EventType.getEventType(ConditionAwaitEvent.class);
+        static final EventType CONDITION_SIGNAL =
+            EventType.getEventType(ConditionSignalEvent.class);
+    }
+
+    @Name("juc.aqs.AcquireBlocked")
+    @Label("AQS Acquire Blocked")
+    @Category({"Java Application", "Synchronizers"})
+    @Description("Thread parked while acquiring a synchronizer")
+    static final class AcquireBlockedEvent extends Event {
+        @Label("Synchronizer Class")
+        Class<?> synchronizerClass;
+        @Label("Parked")
+        @Timespan(Timespan.NANOSECONDS)
+        long parkedNanos;
+        @Label("Interrupted")
+        boolean interrupted;
+    }
+
+    @Name("juc.aqs.AcquireGranted")
+    @Label("AQS Acquire Granted")
+    @Category({"Java Application", "Synchronizers"})
+    @Description("Queued acquire succeeded")
+    static final class AcquireGrantedEvent extends Event {
+        @Label("Synchronizer Class")
+        Class<?> synchronizerClass;
+        @Label("Queued")
+        @Timespan(Timespan.NANOSECONDS)
+        long queuedNanos;
+        @Label("Shared")
+        boolean shared;
+    }
+
+    @Name("juc.aqs.ConditionAwait")
+    @Label("AQS Condition Await")
+    @Category({"Java Application", "Synchronizers"})
+    @Description("Condition wait, from release until the lock is reacquired")
+    static final class ConditionAwaitEvent extends Event {
+        @Label("Synchronizer Class")
+        Class<?> synchronizerClass;
+        @Label("Waited")
+        @Timespan(Timespan.NANOSECONDS)
+        long waitNanos;
+        @Label("Interrupted")
+        boolean interrupted;
+    }
+
+    @Name("juc.aqs.ConditionSignal")
+    @Label("AQS Condition Signal")
+    @Category({"Java Application", "Synchronizers"})
+    @Description("Waiter moved from a condition queue to the sync queue")
+    static final class ConditionSignalEvent extends Event {
+        @Label("Synchronizer Class")
+        Class<?> synchronizerClass;
+        @Label("Signalled Thread")
+        Thread signalledThread;
+    }
+
+
     // Internal support methods for Conditions
 
     /**
@@ -1564,6 +2687,11 @@ public abstract class AbstractQueuedSynchronizer
          * case the waitStatus can be transiently and harmlessly wrong).
          */
         //enq最终会将当前 node 入队到 阻塞队列，p 是当前节点在阻塞队列的 前驱节点.
+        ConditionSignalEvent event =
+            (jfrOn() && EventTypes.CONDITION_SIGNAL.isEnabled())
+            ? new ConditionSignalEvent() : null;
+        if (event != null)
+            event.begin();
         Node p = enq(node);
 
         //ws 前驱节点的状态..
@@ -1579,9 +2707,41 @@ public abstract class AbstractQueuedSynchronizer
             //唤醒当前node对应的线程...回头再说。
             LockSupport.unpark(node.thread);
 
+        if (event != null && event.shouldCommit()) {
+            event.synchronizerClass = getClass();
+            event.signalledThread = node.thread;
+            event.commit();
+        }
         return true;
     }
 
+    /**
+     * Transfers a chain of signalled nodes, already linked through
+     * prev and with every waitStatus but the last set to SIGNAL,
+     * from a condition queue to the sync queue in one splice. Used by
+     * signalAll so a broadcast costs one successful tail CAS rather
+     * than one per waiter.
+     *
+     * @param first the first node of the chain
+     * @param last the last node of the chain
+     */
+    final void transferAllForSignal(Node first, Node last) {
+        ConditionSignalEvent event =
+            (jfrOn() && EventTypes.CONDITION_SIGNAL.isEnabled())
+            ? new ConditionSignalEvent() : null;
+        if (event != null)
+            event.begin();
+        Node p = enqAll(first, last);
+        int ws = p.waitStatus;
+        if (ws > 0 || !compareAndSetWaitStatus(p, ws, Node.SIGNAL))
+            LockSupport.unpark(first.thread);
+        if (event != null && event.shouldCommit()) {
+            event.synchronizerClass = getClass();
+            event.signalledThread = first.thread;
+            event.commit();
+        }
+    }
+
     /**
      * Transfers node, if necessary, to sync queue after a cancelled wait.
      * Returns true if thread was cancelled before being signalled.
@@ -1830,12 +2990,27 @@ public abstract class AbstractQueuedSynchronizer
          */
         private void doSignalAll(Node first) {
             lastWaiter = firstWaiter = null;
+            //hd/tl 串起所有成功转移的节点，最后一次性拼接到阻塞队列的队尾
+            Node hd = null, tl = null;
             do {
                 Node next = first.nextWaiter;
                 first.nextWaiter = null;
-                transferForSignal(first);
+                //cas失败说明节点已经取消等待，它会自己去阻塞队列排队
+                if (compareAndSetWaitStatus(first, Node.CONDITION, 0)) {
+                    if (tl == null)
+                        hd = first;
+                    else {
+                        //tl 后面还有节点，释放锁时需要唤醒后继
+                        tl.waitStatus = Node.SIGNAL;
+                        //只设prev，next 等拼接到阻塞队列之后再设（见enqAll）
+                        first.prev = tl;
+                    }
+                    tl = first;
+                }
                 first = next;
             } while (first != null);
+            if (hd != null)
+                transferAllForSignal(hd, tl);
         }
 
         /**
@@ -2010,6 +3185,7 @@ public abstract class AbstractQueuedSynchronizer
 
             //将调用await方法的线程包装成为node并且加入到条件队列中，并返回当前线程的node。
             Node node = addConditionWaiter();
+            final long waitStart = System.nanoTime();
             //完全释放掉当前线程对应的锁（将state置为0）
             //为什么要释放锁呢？  加着锁 挂起后，谁还能救你呢？
             int savedState = fullyRelease(node);
@@ -2052,6 +3228,15 @@ public abstract class AbstractQueuedSynchronizer
                 unlinkCancelledWaiters();
 
             //条件成立：说明挂起期间 发生过中断（1.条件队列内的挂起 2.条件队列之外的挂起）
+            if (jfrOn() && EventTypes.CONDITION_AWAIT.isEnabled()) {
+                ConditionAwaitEvent event = new ConditionAwaitEvent();
+                if (event.shouldCommit()) {
+                    event.synchronizerClass = AbstractQueuedSynchronizer.this.getClass();
+                    event.waitNanos = System.nanoTime() - waitStart;
+                    event.interrupted = interruptMode != 0;
+                    event.commit();
+                }
+            }
             if (interruptMode != 0)
                 reportInterruptAfterWait(interruptMode);
         }
@@ -2271,6 +3456,7 @@ public abstract class AbstractQueuedSynchronizer
     private static final long tailOffset;
     private static final long waitStatusOffset;
     private static final long nextOffset;
+    private static final long spareNodeOffset;
 
     static {
         try {
@@ -2284,6 +3470,8 @@ public abstract class AbstractQueuedSynchronizer
                 (Node.class.getDeclaredField("waitStatus"));
             nextOffset = unsafe.objectFieldOffset
                 (Node.class.getDeclaredField("next"));
+            spareNodeOffset = unsafe.objectFieldOffset
+                (AbstractQueuedSynchronizer.class.getDeclaredField("spareNode"));
 
         } catch (Exception ex) { throw new Error(ex); }
     }
@@ -2302,12 +3490,19 @@ public abstract class AbstractQueuedSynchronizer
         return unsafe.compareAndSwapObject(this, tailOffset, expect, update);
     }
 
+    /**
+     * CAS spareNode field. Used only by newWaiter and recycle.
+     */
+    private final boolean compareAndSetSpareNode(Node expect, Node update) {
+        return unsafe.compareAndSwapObject(this, spareNodeOffset, expect, update);
+    }
+
     /**
      * CAS waitStatus field of a node.
      */
-    private static final boolean compareAndSetWaitStatus(Node node,
-                                                         int expect,
-                                                         int update) {
+    static final boolean compareAndSetWaitStatus(Node node,
+                                                 int expect,
+                                                 int update) {
         return unsafe.compareAndSwapInt(node, waitStatusOffset,
                                         expect, update);
     }
@@ -2315,9 +3510,9 @@ public abstract class AbstractQueuedSynchronizer
     /**
      * CAS next field of a node.
      */
-    private static final boolean compareAndSetNext(Node node,
-                                                   Node expect,
-                                                   Node update) {
+    static final boolean compareAndSetNext(Node node,
+                                           Node expect,
+                                           Node update) {
         return unsafe.compareAndSwapObject(node, nextOffset, expect, update);
     }
 }
@@ -0,0 +1,278 @@
+package java.util.concurrent.locks;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
+
+/**
+ * A NUMA-aware mutual exclusion lock built by lock cohorting: every
+ * cohort (typically one per CPU socket) has its own local lock, and
+ * one global lock is held by whichever cohort currently owns the
+ * lock. A thread first takes its cohort's local lock and then the
+ * global lock; on release, if another thread of the same cohort is
+ * already waiting on the local lock, the global lock is handed over
+ * with the local one instead of being released. The lock and the data
+ * it guards thus stay in one socket's caches for a run of critical
+ * sections, and only every {@code passLimit} handoffs (or when the
+ * cohort runs out of waiters) does the global lock move to another
+ * socket.
+ *
+ * <p>Both levels are {@code ReentrantLock.NonfairSync}s. Cohorting
+ * needs a global lock that can be released by a thread other than
+ * the one that acquired it, so the thread inheriting the global lock
+ * takes over its exclusive owner before it may release it.
+ *
+ * <p>The JVM cannot tell which socket a thread runs on, so the
+ * caller supplies {@code cohortOf}, typically reading a socket id
+ * that a pinned executor stored for its threads. The default mapping
+ * only spreads threads over cohorts by id. A thread must map to the
+ * same cohort for as long as it holds the lock; the lock remembers the
+ * cohort it was acquired in.
+ *
+ * <p>The lock is reentrant. Conditions are not supported: waiting
+ * would have to release two levels at once.
+ *
+ * 锁分组（lock cohorting）：每个分组（一般是一个CPU插槽）一把本地锁，所有分组共用一把全局锁。
+ * 加锁：先拿本组的本地锁，再拿全局锁。
+ * 解锁：如果本组还有线程在等本地锁，全局锁不释放，跟着本地锁一起交给本组的下一个线程，
+ * 锁和被保护的数据一直留在同一个插槽的缓存里，不用每次都跨插槽搬运缓存行。
+ * 连续交接 passLimit 次之后必须释放全局锁，给其它分组机会，避免饿死。
+ */
+public class CohortLock implements Lock {
+
+    /**
+     * Per-cohort state. globalHeld and passes are written only by the
+     * holder of local; globalHeld is volatile because an abandoning
+     * waiter reads it without holding local.
+     *
+     * <p>Cohorts are padded so that these fields, written on every
+     * acquire and release within a cohort, do not share a cache line
+     * with a neighbouring cohort's. The local lock's own queue and
+     * state live in a separate NonfairSync object, which is not padded.
+     *
+     * globalHeld / passes 每次加锁、解锁都要写，加了@Contended填充，不会和相邻分组的字段落在同一个缓存行。
+     * 本地锁是另外分配的 NonfairSync 对象，它的 state/head/tail 没有填充。
+     */
+    @sun.misc.Contended static final class Cohort {
+        final ReentrantLock.NonfairSync local = new ReentrantLock.NonfairSync();
+        //全局锁是否留在本组
+        volatile boolean globalHeld;
+        //全局锁在本组内已经连续交接的次数
+        int passes;
+    }
+
+    private final ReentrantLock.NonfairSync global = new ReentrantLock.NonfairSync();
+    private final Cohort[] cohorts;
+    private final int passLimit;
+    private final ToIntFunction<Thread> cohortOf;
+
+    /** Cohort of the current holder; written only by the holder */
+    private Cohort holder;
+
+    /**
+     * Creates a lock with the given number of cohorts and handoff bound,
+     * assigning threads to cohorts by thread id.
+     *
+     * @param cohorts number of cohorts, usually the number of sockets
+     * @param passLimit maximum number of consecutive handoffs within a cohort
+     */
+    public CohortLock(int cohorts, int passLimit) {
+        this(cohorts, passLimit, t -> (int) (t.getId() % cohorts));
+    }
+
+    /**
+     * Creates a lock with the given number of cohorts, handoff bound
+     * and thread-to-cohort mapping.
+     *
+     * @param cohorts number of cohorts, usually the number of sockets
+     * @param passLimit maximum number of consecutive handoffs within a cohort
+     * @param cohortOf maps a thread to a cohort in {@code [0, cohorts)}
+     */
+    public CohortLock(int cohorts, int passLimit, ToIntFunction<Thread> cohortOf) {
+        if (cohorts <= 0 || passLimit < 0 || cohortOf == null)
+            throw new IllegalArgumentException();
+        this.cohorts = new Cohort[cohorts];
+        for (int i = 0; i < cohorts; i++)
+            this.cohorts[i] = new Cohort();
+        this.passLimit = passLimit;
+        this.cohortOf = cohortOf;
+    }
+
+    private Cohort cohortOf(Thread t) {
+        return cohorts[cohortOf.applyAsInt(t)];
+    }
+
+    public void lock() {
+        Thread current = Thread.currentThread();
+        Cohort c = cohortOf(current);
+        c.local.lock();
+        if (c.local.getHoldCount() > 1)
+            return;
+        if (!inheritGlobal(c, current))
+            global.lock();
+        acquired(c);
+    }
+
+    public void lockInterruptibly() throws InterruptedException {
+        Thread current = Thread.currentThread();
+        Cohort c = cohortOf(current);
+        try {
+            c.local.acquireInterruptibly(1);
+        } catch (InterruptedException ie) {
+            reclaim(c);
+            throw ie;
+        }
+        if (c.local.getHoldCount() > 1)
+            return;
+        if (!inheritGlobal(c, current)) {
+            try {
+                global.acquireInterruptibly(1);
+            } catch (InterruptedException ie) {
+                c.local.release(1);
+                throw ie;
+            }
+        }
+        acquired(c);
+    }
+
+    public boolean tryLock() {
+        Thread current = Thread.currentThread();
+        Cohort c = cohortOf(current);
+        if (!c.local.nonfairTryAcquire(1))
+            return false;
+        if (c.local.getHoldCount() > 1)
+            return true;
+        if (!inheritGlobal(c, current) && !global.nonfairTryAcquire(1)) {
+            c.local.release(1);
+            return false;
+        }
+        acquired(c);
+        return true;
+    }
+
+    public boolean tryLock(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        Thread current = Thread.currentThread();
+        Cohort c = cohortOf(current);
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        boolean ok;
+        try {
+            ok = c.local.tryAcquireNanos(1, unit.toNanos(timeout));
+        } catch (InterruptedException ie) {
+            reclaim(c);
+            throw ie;
+        }
+        if (!ok) {
+            reclaim(c);
+            return false;
+        }
+        if (c.local.getHoldCount() > 1)
+            return true;
+        if (!inheritGlobal(c, current)) {
+            try {
+                ok = global.tryAcquireNanos(1, deadline - System.nanoTime());
+            } catch (InterruptedException ie) {
+                c.local.release(1);
+                throw ie;
+            }
+            if (!ok) {
+                c.local.release(1);
+                return false;
+            }
+        }
+        acquired(c);
+        return true;
+    }
+
+    /**
+     * Releases one hold. On the last hold, keeps the global lock in the
+     * cohort if a local waiter is queued and the handoff bound allows,
+     * and releases it otherwise.
+     */
+    public void unlock() {
+        Cohort c = holder;
+        if (c == null || !c.local.isHeldExclusively())
+            throw new IllegalMonitorStateException();
+        if (c.local.getHoldCount() > 1) {
+            c.local.release(1);
+            return;
+        }
+        //本组还有人在等，并且没超过交接上限：全局锁留给本组下一个线程
+        boolean pass = c.passes < passLimit && c.local.hasQueuedThreads();
+        holder = null;
+        if (pass) {
+            c.passes++;
+        } else {
+            c.passes = 0;
+            c.globalHeld = false;
+            global.release(1);
+        }
+        c.local.release(1);
+        if (pass)
+            reclaim(c);
+    }
+
+    /**
+     * Conditions are not supported.
+     *
+     * @throws UnsupportedOperationException always
+     */
+    public Condition newCondition() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Called with c.local held for the first time: takes over the
+     * global lock if the previous local holder left it in the cohort.
+     */
+    private boolean inheritGlobal(Cohort c, Thread current) {
+        if (!c.globalHeld)
+            return false;
+        // 全局锁是上一个持有者拿的，改成当前线程，之后才能由当前线程释放
+        global.setExclusiveOwnerThread(current);
+        return true;
+    }
+
+    private void acquired(Cohort c) {
+        c.globalHeld = true;
+        holder = c;
+    }
+
+    /**
+     * Returns a global lock that was left in a cohort for a waiter that
+     * gave up. Called after the local lock was released with the global
+     * lock handed over, and by local waiters that timed out or were
+     * interrupted: whichever runs last sees an empty local queue and
+     * releases the global lock, so the other cohorts cannot be locked
+     * out by a handoff to nobody.
+     *
+     * 全局锁交给本组的等待者时，等待者可能刚好超时/被中断放弃了，全局锁就没人释放了。
+     * 交接的线程和放弃的线程都会来检查一次：本组没人排队了，就抢回本地锁，把全局锁释放掉。
+     */
+    private void reclaim(Cohort c) {
+        if (c.globalHeld && !c.local.hasQueuedThreads() &&
+            c.local.nonfairTryAcquire(1)) {
+            if (c.globalHeld && !c.local.hasQueuedThreads()) {
+                c.passes = 0;
+                c.globalHeld = false;
+                global.setExclusiveOwnerThread(Thread.currentThread());
+                global.release(1);
+            }
+            c.local.release(1);
+        }
+    }
+
+    /**
+     * Returns {@code true} if the lock is held by any thread or is
+     * being handed over within a cohort.
+     */
+    public boolean isLocked() {
+        return global.isLocked();
+    }
+
+    /**
+     * Returns the number of holds on this lock by the current thread.
+     */
+    public int getHoldCount() {
+        Cohort c = holder;
+        return (c == null) ? 0 : c.local.getHoldCount();
+    }
+}
@@ -163,6 +163,8 @@ public class CountDownLatch {
 
         Sync(int count) {
             setState(count);
+            //count归零后所有等待者都能通过，用树形唤醒代替逐个唤醒
+            setSharedWakeFanOut(true);
         }
 
         int getCount() {
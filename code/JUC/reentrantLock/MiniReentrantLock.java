@@ -3,6 +3,14 @@ package com.xiaoliu.niubility;
 import sun.misc.Unsafe;
 
 import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.LockSupport;
 
 public class MiniReentrantLock implements Lock{
@@ -28,8 +36,166 @@ public class MiniReentrantLock implements Lock{
      * 2.Tail 指向队列的尾节点
      */
     //比较特殊：head节点对应的线程 就是当前占用锁的线程
-    private Node head;
-    private Node tail;
+    //注意head上并不记录持锁线程（thread会被置空），而且非公平锁被插队抢走时，
+    //持锁线程根本没有node，head只是上一个出队的节点。所以head只能用来判断"谁是下一个"，不能用来判断锁有没有被占用。
+    //release 和 cancelAcquire 在别的线程里读写head/tail，必须是volatile
+    private volatile Node head;
+    private volatile Node tail;
+
+    /**
+     * true：公平锁，抢锁前先看队列里有没有人在等
+     * false：非公平锁，lock时先直接CAS抢一次state，抢不到再去排队。
+     * 非公平锁释放锁时不用等 被唤醒的线程 上下文切换回来，正在运行的线程可以直接拿到锁，吞吐量高很多。
+     */
+    private final boolean fair;
+
+    /**
+     * 默认公平锁
+     */
+    public MiniReentrantLock() {
+        this(true);
+    }
+
+    /**
+     * @param fair true 公平锁，false 非公平锁
+     */
+    public MiniReentrantLock(boolean fair) {
+        this.fair = fair;
+    }
+
+    /**
+     * 锁事件监听器，默认 LockListener.NONE 什么都不做。
+     * 以前acquireQueued里在park前后System.out.println，所有竞争线程都要排队抢stdout的锁，
+     * 打印的耗时比锁本身还大。现在调试时才挂一个监听器，比如 TraceRing。
+     */
+    private volatile LockListener listener = LockListener.NONE;
+
+    /**
+     * 设置锁事件监听器，传null 恢复成 NONE
+     */
+    public void setListener(LockListener listener) {
+        this.listener = (listener != null) ? listener : LockListener.NONE;
+    }
+
+    /**
+     * 锁事件回调。只在慢路径（排队、挂起、唤醒）上触发，直接抢到锁不会回调。
+     * 回调在加锁/解锁的线程上同步执行，实现里不要阻塞，也不要再去抢这把锁。
+     */
+    public interface LockListener {
+        //什么都不做的默认实现
+        LockListener NONE = new LockListener() {};
+
+        /**
+         * 线程thread 排队后即将挂起
+         */
+        default void onPark(Thread thread) {}
+
+        /**
+         * 释放锁的线程 即将唤醒 thread
+         */
+        default void onUnpark(Thread thread) {}
+
+        /**
+         * 排过队的线程thread 抢到了锁
+         */
+        default void onAcquire(Thread thread) {}
+    }
+
+    /**
+     * 无锁环形缓冲区：只记录最近 capacity 条事件，写满了覆盖最老的。
+     * 事件的各个字段存在预先分配好的几个并列数组里，按序号取下标，写事件不分配对象：
+     * 一次 getAndIncrement，再写几个数组元素，不会阻塞，也不会打印。
+     * seqs[i] 是槽位i里事件的序号，写的过程中是-1，写完才lazySet成序号，读的时候前后各读一次，
+     * 两次都是要的序号才算读到了完整的事件。
+     * 只有环绕一整圈的两个写线程同时写同一个槽位时，字段才可能混在一起；容量开大一点就不会发生。
+     * 需要的时候调用 snapshot() 把事件拿出来看。
+     */
+    public static final class TraceRing implements LockListener {
+        static final byte PARK = 0;
+        static final byte UNPARK = 1;
+        static final byte ACQUIRE = 2;
+        private static final String[] NAMES = {"park", "unpark", "acquire"};
+
+        //槽位里事件的序号，-1 表示空的或者正在写
+        private final AtomicLongArray seqs;
+        private final long[] nanos;
+        private final byte[] kinds;
+        //存线程名而不是Thread，不让缓冲区把已经结束的线程留住
+        private final String[] threads;
+        private final int mask;
+        //下一条事件的序号
+        private final AtomicLong cursor = new AtomicLong();
+
+        /**
+         * @param capacity 会向上取整成2的幂
+         */
+        public TraceRing(int capacity) {
+            int n = 1;
+            while(n < capacity) {
+                n <<= 1;
+            }
+            this.seqs = new AtomicLongArray(n);
+            for(int i = 0; i < n; i++) {
+                seqs.set(i, -1L);
+            }
+            this.nanos = new long[n];
+            this.kinds = new byte[n];
+            this.threads = new String[n];
+            this.mask = n - 1;
+        }
+
+        @Override
+        public void onPark(Thread thread) {
+            record(PARK, thread);
+        }
+
+        @Override
+        public void onUnpark(Thread thread) {
+            record(UNPARK, thread);
+        }
+
+        @Override
+        public void onAcquire(Thread thread) {
+            record(ACQUIRE, thread);
+        }
+
+        private void record(byte kind, Thread thread) {
+            long seq = cursor.getAndIncrement();
+            int i = (int) seq & mask;
+            //先标记成正在写，storeFence 保证读线程看到新字段之前已经看到-1
+            seqs.lazySet(i, -1L);
+            unsafe.storeFence();
+            nanos[i] = System.nanoTime();
+            kinds[i] = kind;
+            threads[i] = thread.getName();
+            seqs.lazySet(i, seq);
+        }
+
+        /**
+         * 按序号从旧到新返回当前还在缓冲区里的事件。
+         * 写线程可能正在覆盖，拿到的只是一个近似快照，被覆盖掉的序号会跳过。
+         */
+        public List<String> snapshot() {
+            long end = cursor.get();
+            long start = Math.max(0L, end - seqs.length());
+            List<String> out = new ArrayList<>((int) (end - start));
+            for(long seq = start; seq < end; seq++) {
+                int i = (int) seq & mask;
+                if(seqs.get(i) != seq) {
+                    continue;
+                }
+                long t = nanos[i];
+                byte kind = kinds[i];
+                String thread = threads[i];
+                //字段读完再读一次序号，没变说明读的过程中没有被覆盖
+                unsafe.loadFence();
+                if(seqs.get(i) == seq) {
+                    out.add(seq + " " + t + " " + NAMES[kind] + " " + thread);
+                }
+            }
+            return out;
+        }
+    }
 
 
 
@@ -40,17 +206,32 @@ public class MiniReentrantLock implements Lock{
      * Node节点，然后放入到FIFO队列
      */
     static final class Node {
+        //节点已取消：超时或者被中断的等待者，会被后面的节点跳过
+        static final int CANCELLED = 1;
+        //节点在条件队列中
+        static final int CONDITION = -2;
+
         //前置节点引用
-        Node prev;
+        volatile Node prev;
         //后置节点引用
-        Node next;
+        //取消的节点出队后 next 指向自己（node.next = node），方便GC，也说明它已经不在队列里了
+        volatile Node next;
         //封装的线程本尊
         Thread thread;
+        //0 正常排队   CANCELLED 已取消   CONDITION 在条件队列中
+        volatile int waitStatus;
+        //条件队列中的下一个节点
+        Node nextWaiter;
 
         public Node(Thread thread) {
             this.thread = thread;
         }
 
+        public Node(Thread thread, int waitStatus) {
+            this.thread = thread;
+            this.waitStatus = waitStatus;
+        }
+
         public Node() {
         }
     }
@@ -58,7 +239,7 @@ public class MiniReentrantLock implements Lock{
     /**
      * 获取锁
      * 假设当前锁被占用，则会阻塞调用者线程,直到抢占到锁为止
-     * 模拟公平锁
+     * 默认模拟公平锁，new MiniReentrantLock(false) 为非公平锁
      * 什么是公平锁？ 讲究一个先来后到！
      *
      * lock的过程是怎样的？
@@ -67,6 +248,11 @@ public class MiniReentrantLock implements Lock{
      */
     @Override
     public void lock() {
+        //非公平锁：不管队列里有没有等待者，先CAS抢一次
+        if(!fair && compareAndSetState(0, 1)) {
+            this.exclusiveOwnerThread = Thread.currentThread();
+            return;
+        }
         //第一次获取到锁时：将state == 1
         //第n次重入时：将state == n
         acquire(1);
@@ -80,10 +266,50 @@ public class MiniReentrantLock implements Lock{
     private void acquire(int arg) {
         if(!tryAcquire(arg)) {
             Node node = addWaiter();
-            acquireQueued(node, arg);
+            //lock() 不响应中断，排队期间被中断过的话，拿到锁之后再把中断标记补上
+            if(acquireQueued(node, arg)) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * 可以被中断的lock：排队期间被中断，取消排队并抛出InterruptedException
+     */
+    @Override
+    public void lockInterruptibly() throws InterruptedException {
+        if(Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        if(!tryAcquire(1)) {
+            doAcquireInterruptibly(1);
         }
     }
 
+    /**
+     * 只尝试一次，不排队。和ReentrantLock一样，公平锁也会直接抢。
+     */
+    @Override
+    public boolean tryLock() {
+        return tryAcquire(1, true);
+    }
+
+    /**
+     * 限时获取锁：超时返回false，被中断抛出InterruptedException，两种情况都会取消排队的node
+     */
+    @Override
+    public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+        if(Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        return tryAcquire(1) || doAcquireNanos(1, unit.toNanos(time));
+    }
+
+    @Override
+    public Condition newCondition() {
+        return new ConditionObject();
+    }
+
     /**
      * 尝试抢占锁失败，需要做什么呢？
      * 1.需要将当前线程封装成 node，加入到 阻塞队列
@@ -102,7 +328,11 @@ public class MiniReentrantLock implements Lock{
      */
 
 
-    private void acquireQueued(Node node, int arg) {
+    /**
+     * 返回值：true 表示排队期间被中断过
+     */
+    private boolean acquireQueued(Node node, int arg) {
+        boolean interrupted = false;
         //只有当前node成功获取到锁 以后 才会跳出自旋。
         for(;;) {
             //什么情况下，当前node被唤醒之后可以尝试去获取锁呢？
@@ -110,7 +340,7 @@ public class MiniReentrantLock implements Lock{
 
 
             //head 节点 就是 当前持锁节点..
-            Node pred = node.prev;
+            Node pred = skipCancelled(node);
             if(pred == head/*条件成立：说明当前node拥有抢占权限..*/ && tryAcquire(arg)) {
                 //这里面，说明当前线程 竞争锁成功啦！
                 //需要做点什么？
@@ -118,16 +348,149 @@ public class MiniReentrantLock implements Lock{
                 //2.协助 原始 head 出队
                 setHead(node);
                 pred.next = null; // help GC
-                return;
+                return interrupted;
             }
 
-            System.out.println("线程：" + Thread.currentThread().getName() + "，挂起！");
             //将当前线程挂起！
-            LockSupport.park();
-            System.out.println("线程：" + Thread.currentThread().getName() + "，唤醒！");
-
             //什么时候唤醒被park的线程呢？
             //unlock 过程了！
+            if(parkAndCheckInterrupt()) {
+                interrupted = true;
+            }
+        }
+    }
+
+    /**
+     * 可中断的排队：被中断时取消node，抛出InterruptedException
+     */
+    private void doAcquireInterruptibly(int arg) throws InterruptedException {
+        Node node = addWaiter();
+        boolean failed = true;
+        try {
+            for(;;) {
+                Node pred = skipCancelled(node);
+                if(pred == head && tryAcquire(arg)) {
+                    setHead(node);
+                    pred.next = null; // help GC
+                    failed = false;
+                    return;
+                }
+                if(parkAndCheckInterrupt()) {
+                    throw new InterruptedException();
+                }
+            }
+        } finally {
+            if(failed) {
+                cancelAcquire(node);
+            }
+        }
+    }
+
+    /**
+     * 限时排队：超时返回false，被中断抛出InterruptedException，都会取消node
+     */
+    private boolean doAcquireNanos(int arg, long nanosTimeout) throws InterruptedException {
+        if(nanosTimeout <= 0L) {
+            return false;
+        }
+        final long deadline = System.nanoTime() + nanosTimeout;
+        Node node = addWaiter();
+        boolean failed = true;
+        try {
+            for(;;) {
+                Node pred = skipCancelled(node);
+                if(pred == head && tryAcquire(arg)) {
+                    setHead(node);
+                    pred.next = null; // help GC
+                    failed = false;
+                    return true;
+                }
+                nanosTimeout = deadline - System.nanoTime();
+                if(nanosTimeout <= 0L) {
+                    return false;
+                }
+                listener.onPark(Thread.currentThread());
+                LockSupport.parkNanos(this, nanosTimeout);
+                if(Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        } finally {
+            if(failed) {
+                cancelAcquire(node);
+            }
+        }
+    }
+
+    /**
+     * 挂起当前线程，唤醒后返回是否被中断过（并清除中断标记）
+     */
+    private boolean parkAndCheckInterrupt() {
+        listener.onPark(Thread.currentThread());
+        LockSupport.park(this);
+        return Thread.interrupted();
+    }
+
+    /**
+     * 跳过已经取消的前置节点，返回第一个没有取消的前置节点。
+     * head 永远不会是取消状态，所以一定能找到。
+     */
+    private Node skipCancelled(Node node) {
+        Node pred = node.prev;
+        if(pred.waitStatus == Node.CANCELLED) {
+            do {
+                node.prev = pred = pred.prev;
+            } while(pred.waitStatus == Node.CANCELLED);
+            //重新链接next，这样unparkSuccessor(pred) 能直接找到当前node
+            pred.next = node;
+        }
+        return pred;
+    }
+
+    /**
+     * 取消排队：超时或者被中断的node标记为CANCELLED，并把它从队列里摘掉，
+     * 否则放弃排队的线程越多，队列里的死节点就越多，unparkSuccessor每次都要跳过它们。
+     *
+     * 和AQS的cancelAcquire一样分三种情况：
+     * 1.node是tail：CAS把tail改回pred，再CAS把pred.next置空
+     * 2.pred不是head，也还在排队：把pred.next 直接接到node.next上，跳过node
+     * 3.pred是head（或者pred也刚取消了）：node就是下一个该被唤醒的节点，
+     *   持锁线程可能已经unlock并且唤醒过node了，这次唤醒不能丢，转交给node后面的节点
+     */
+    private void cancelAcquire(Node node) {
+        if(node == null) {
+            return;
+        }
+        node.thread = null;
+
+        //跳过前面已经取消的节点
+        Node pred = node.prev;
+        while(pred.waitStatus == Node.CANCELLED) {
+            node.prev = pred = pred.prev;
+        }
+        //下面CAS pred.next 时的期望值，失败说明别的线程已经改过了，不用管
+        Node predNext = pred.next;
+
+        //先标记取消再看pred：如果pred在这之后才成为head，它unlock时会看到node已取消，从tail往前找
+        node.waitStatus = Node.CANCELLED;
+
+        //情况1：node是tail，直接出队
+        if(node == tail && compareAndSetTail(node, pred)) {
+            compareAndSetNext(pred, predNext, null);
+        } else {
+            //情况2：pred.thread != null 说明pred还在排队，没有成为head，
+            //以后pred成为head、unlock时会通过pred.next唤醒 next
+            if(pred != head && pred.thread != null) {
+                Node next = node.next;
+                if(next != null && next.waitStatus != Node.CANCELLED) {
+                    compareAndSetNext(pred, predNext, next);
+                }
+            } else {
+                //情况3：pred是head，head上没有记录持锁线程，不知道锁现在有没有被释放，直接把唤醒传下去
+                //被唤醒的节点抢不到锁，会再次park，多唤醒一次没有关系
+                unparkSuccessor(node);
+            }
+            node.next = node; // help GC
         }
     }
 
@@ -214,6 +577,13 @@ public class MiniReentrantLock implements Lock{
      * false -> 抢占失败
      */
     private boolean tryAcquire(int arg) {
+        return tryAcquire(arg, !fair);
+    }
+
+    /**
+     * 参数barge：true 表示不管前面有没有等待者都直接抢（非公平）
+     */
+    private boolean tryAcquire(int arg, boolean barge) {
 
         if(state == 0) {
             //当前state == 0 时，是否可以直接抢锁呢？
@@ -221,7 +591,8 @@ public class MiniReentrantLock implements Lock{
             //条件一：!hasQueuedPredecessor() 取反之后值为true 表示当前线程前面没有等待者线程。
             //条件二：compareAndSetState(0, arg)  为什么使用CAS ? 因为lock方法可能有多线程调用的情况..
             //      成立：说明当前线程抢锁成功
-            if(!hasQueuedPredecessor() && compareAndSetState(0, arg)) {
+            //非公平锁不检查前面有没有等待者，直接抢
+            if((barge || !hasQueuedPredecessor()) && compareAndSetState(0, arg)) {
                 //抢锁成功了，需要干点啥？
                 //1.需要将exclusiveOwnerThread 设置为 当前进入if块中的线程
                 this.exclusiveOwnerThread = Thread.currentThread();
@@ -295,25 +666,44 @@ public class MiniReentrantLock implements Lock{
         release(1);
     }
 
-    private void release(int arg) {
+    private boolean release(int arg) {
         //条件成立：说明线程已经完全释放锁了
         //需要干点啥呢？
         //阻塞队列里面还有好几个睡觉的线程呢？ 是不是 应该喊醒一个线程呢？
         if(tryRelease(arg)) {
             Node head = this.head;
 
-            //你得知道，有没有等待者？   就是判断 head.next == null  说明没有等待者， head.next != null 说明有等待者..
-            if(head.next != null) {
+            //你得知道，有没有等待者？
+            //head == null 说明从来没有发生过竞争；head == tail 说明队列里没有等待者
+            //不能只看head.next：新节点CAS成为tail之后，才会设置pred.next
+            if(head != null && head != tail) {
                 //公平锁，就是唤醒head.next节点
                 unparkSuccessor(head);
             }
+            return true;
         }
+        return false;
     }
 
+    /**
+     * 唤醒node后面第一个没有取消的节点。
+     * node.next 为空（还没链接上）或者已经取消时，从tail往前找。
+     */
     private void unparkSuccessor(Node node) {
         Node s = node.next;
-        if(s != null && s.thread != null) {
-            LockSupport.unpark(s.thread);
+        if(s == null || s.waitStatus == Node.CANCELLED) {
+            s = null;
+            for(Node t = tail; t != null && t != node; t = t.prev) {
+                if(t.waitStatus != Node.CANCELLED) {
+                    s = t;
+                }
+            }
+        }
+        Thread t;
+        //s.thread 可能被抢到锁的s自己置空了，先读到局部变量
+        if(s != null && (t = s.thread) != null) {
+            listener.onUnpark(t);
+            LockSupport.unpark(t);
         }
     }
 
@@ -325,7 +715,7 @@ public class MiniReentrantLock implements Lock{
         int c = getState() - arg;
 
         if(getExclusiveOwnerThread() != Thread.currentThread()) {
-            throw new RuntimeException("fuck you! must getLock!");
+            throw new IllegalMonitorStateException("fuck you! must getLock!");
         }
         //如果执行到这里？存在并发么？ 只有一个线程 ExclusiveOwnerThread 会来到这里。
 
@@ -345,12 +735,270 @@ public class MiniReentrantLock implements Lock{
 
 
     private void setHead(Node node) {
+        listener.onAcquire(Thread.currentThread());
         this.head = node;
         //为什么？ 因为当前node已经是获取锁成功的线程了...
         node.thread = null;
         node.prev = null;
     }
 
+    /**
+     * 条件队列
+     * await：把当前线程包装成node放到条件队列，完全释放锁，挂起，直到被signal转移到阻塞队列，再重新竞争锁。
+     * signal：把条件队列的第一个node转移到阻塞队列末尾，等持锁线程unlock时被唤醒。
+     */
+    public class ConditionObject implements Condition {
+        //条件队列的头尾，只有持锁线程会修改
+        private Node firstWaiter;
+        private Node lastWaiter;
+
+        //退出await时重新设置中断标记
+        private static final int REINTERRUPT = 1;
+        //退出await时抛出InterruptedException
+        private static final int THROW_IE = -1;
+
+        private Node addConditionWaiter() {
+            if(!isHeldExclusively()) {
+                throw new IllegalMonitorStateException();
+            }
+            Node t = lastWaiter;
+            //最后一个节点已经取消了，先清理一遍
+            if(t != null && t.waitStatus != Node.CONDITION) {
+                unlinkCancelledWaiters();
+                t = lastWaiter;
+            }
+            Node node = new Node(Thread.currentThread(), Node.CONDITION);
+            if(t == null) {
+                firstWaiter = node;
+            } else {
+                t.nextWaiter = node;
+            }
+            lastWaiter = node;
+            return node;
+        }
+
+        private void unlinkCancelledWaiters() {
+            Node t = firstWaiter;
+            Node trail = null;
+            while(t != null) {
+                Node next = t.nextWaiter;
+                if(t.waitStatus != Node.CONDITION) {
+                    t.nextWaiter = null;
+                    if(trail == null) {
+                        firstWaiter = next;
+                    } else {
+                        trail.nextWaiter = next;
+                    }
+                    if(next == null) {
+                        lastWaiter = trail;
+                    }
+                } else {
+                    trail = t;
+                }
+                t = next;
+            }
+        }
+
+        @Override
+        public void signal() {
+            if(!isHeldExclusively()) {
+                throw new IllegalMonitorStateException();
+            }
+            Node first = firstWaiter;
+            //转移失败说明这个node已经取消了（超时/中断），继续转移下一个
+            while(first != null) {
+                if((firstWaiter = first.nextWaiter) == null) {
+                    lastWaiter = null;
+                }
+                first.nextWaiter = null;
+                if(transferForSignal(first)) {
+                    break;
+                }
+                first = firstWaiter;
+            }
+        }
+
+        @Override
+        public void signalAll() {
+            if(!isHeldExclusively()) {
+                throw new IllegalMonitorStateException();
+            }
+            Node first = firstWaiter;
+            lastWaiter = firstWaiter = null;
+            while(first != null) {
+                Node next = first.nextWaiter;
+                first.nextWaiter = null;
+                transferForSignal(first);
+                first = next;
+            }
+        }
+
+        @Override
+        public void await() throws InterruptedException {
+            if(Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            Node node = addConditionWaiter();
+            int savedState = fullyRelease(node);
+            int interruptMode = 0;
+            //还在条件队列中，继续挂起
+            while(!isOnSyncQueue(node)) {
+                LockSupport.park(this);
+                if((interruptMode = checkInterruptWhileWaiting(node)) != 0) {
+                    break;
+                }
+            }
+            //已经在阻塞队列了，重新竞争锁，拿到锁时state恢复成await之前的重入次数
+            if(acquireQueued(node, savedState) && interruptMode != THROW_IE) {
+                interruptMode = REINTERRUPT;
+            }
+            if(node.nextWaiter != null) {
+                unlinkCancelledWaiters();
+            }
+            reportInterruptAfterWait(interruptMode);
+        }
+
+        @Override
+        public void awaitUninterruptibly() {
+            Node node = addConditionWaiter();
+            int savedState = fullyRelease(node);
+            boolean interrupted = false;
+            while(!isOnSyncQueue(node)) {
+                LockSupport.park(this);
+                if(Thread.interrupted()) {
+                    interrupted = true;
+                }
+            }
+            if(acquireQueued(node, savedState) || interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public long awaitNanos(long nanosTimeout) throws InterruptedException {
+            if(Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            Node node = addConditionWaiter();
+            int savedState = fullyRelease(node);
+            final long deadline = System.nanoTime() + nanosTimeout;
+            int interruptMode = 0;
+            while(!isOnSyncQueue(node)) {
+                //超时了，自己把node转移到阻塞队列
+                if(nanosTimeout <= 0L) {
+                    transferAfterCancelledWait(node);
+                    break;
+                }
+                LockSupport.parkNanos(this, nanosTimeout);
+                if((interruptMode = checkInterruptWhileWaiting(node)) != 0) {
+                    break;
+                }
+                nanosTimeout = deadline - System.nanoTime();
+            }
+            if(acquireQueued(node, savedState) && interruptMode != THROW_IE) {
+                interruptMode = REINTERRUPT;
+            }
+            if(node.nextWaiter != null) {
+                unlinkCancelledWaiters();
+            }
+            reportInterruptAfterWait(interruptMode);
+            return deadline - System.nanoTime();
+        }
+
+        @Override
+        public boolean await(long time, TimeUnit unit) throws InterruptedException {
+            return awaitNanos(unit.toNanos(time)) > 0L;
+        }
+
+        @Override
+        public boolean awaitUntil(Date deadline) throws InterruptedException {
+            long ms = deadline.getTime() - System.currentTimeMillis();
+            return awaitNanos(TimeUnit.MILLISECONDS.toNanos(ms)) > 0L;
+        }
+
+        /**
+         * 返回值：0 没有被中断；THROW_IE 在signal之前被中断；REINTERRUPT 在signal之后被中断
+         */
+        private int checkInterruptWhileWaiting(Node node) {
+            return Thread.interrupted() ?
+                    (transferAfterCancelledWait(node) ? THROW_IE : REINTERRUPT) :
+                    0;
+        }
+
+        private void reportInterruptAfterWait(int interruptMode) throws InterruptedException {
+            if(interruptMode == THROW_IE) {
+                throw new InterruptedException();
+            } else if(interruptMode == REINTERRUPT) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private boolean isHeldExclusively() {
+        return exclusiveOwnerThread == Thread.currentThread();
+    }
+
+    /**
+     * await时完全释放锁（包括所有重入），返回释放之前的state，醒来后重新获取同样的次数。
+     */
+    private int fullyRelease(Node node) {
+        int savedState = getState();
+        try {
+            release(savedState);
+            return savedState;
+        } catch(RuntimeException e) {
+            node.waitStatus = Node.CANCELLED;
+            throw e;
+        }
+    }
+
+    /**
+     * node是否已经转移到阻塞队列
+     */
+    private boolean isOnSyncQueue(Node node) {
+        if(node.waitStatus == Node.CONDITION || node.prev == null) {
+            return false;
+        }
+        if(node.next != null) {
+            return true;
+        }
+        //node.prev 不为空也不一定入队成功了（CAS tail可能失败），从tail往前找
+        for(Node t = tail; t != null; t = t.prev) {
+            if(t == node) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * signal：把node从条件队列转移到阻塞队列。
+     * 返回false 说明node已经因为超时/中断自己转移过了。
+     */
+    private boolean transferForSignal(Node node) {
+        if(!compareAndSetWaitStatus(node, Node.CONDITION, 0)) {
+            return false;
+        }
+        enq(node);
+        return true;
+    }
+
+    /**
+     * await超时或者被中断时调用。
+     * 返回true：在signal之前取消的，由当前线程自己把node转移到阻塞队列
+     * 返回false：signal已经在转移了，等它转移完成
+     */
+    private boolean transferAfterCancelledWait(Node node) {
+        if(compareAndSetWaitStatus(node, Node.CONDITION, 0)) {
+            enq(node);
+            return true;
+        }
+        while(!isOnSyncQueue(node)) {
+            Thread.yield();
+        }
+        return false;
+    }
+
     public int getState() {
         return state;
     }
@@ -371,6 +1019,8 @@ public class MiniReentrantLock implements Lock{
     private static final long stateOffset;
     private static final long headOffset;
     private static final long tailOffset;
+    private static final long waitStatusOffset;
+    private static final long nextOffset;
 
     static {
         try {
@@ -384,9 +1034,31 @@ public class MiniReentrantLock implements Lock{
                     (MiniReentrantLock.class.getDeclaredField("head"));
             tailOffset = unsafe.objectFieldOffset
                     (MiniReentrantLock.class.getDeclaredField("tail"));
+            waitStatusOffset = unsafe.objectFieldOffset
+                    (Node.class.getDeclaredField("waitStatus"));
+            nextOffset = unsafe.objectFieldOffset
+                    (Node.class.getDeclaredField("next"));
 
         } catch (Exception ex) { throw new Error(ex); }
     }
 
     private final boolean compareAndSetHead(Node update) {
-        return unsafe.compareAndSwapObject(this, headOffset, null, upd
\ No newline at end of file
+        return unsafe.compareAndSwapObject(this, headOffset, null, update);
+    }
+
+    private final boolean compareAndSetTail(Node expect, Node update) {
+        return unsafe.compareAndSwapObject(this, tailOffset, expect, update);
+    }
+
+    private final boolean compareAndSetState(int expect, int update) {
+        return unsafe.compareAndSwapInt(this, stateOffset, expect, update);
+    }
+
+    private static boolean compareAndSetWaitStatus(Node node, int expect, int update) {
+        return unsafe.compareAndSwapInt(node, waitStatusOffset, expect, update);
+    }
+
+    private static boolean compareAndSetNext(Node node, Node expect, Node update) {
+        return unsafe.compareAndSwapObject(node, nextOffset, expect, update);
+    }
+}
@@ -0,0 +1,71 @@
+package com.xiaoliu.niubility;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares fair and non-fair {@link MiniReentrantLock} throughput:
+ * several threads repeatedly lock, bump a counter and unlock for a
+ * fixed time, and the total count is reported per mode.
+ *
+ * 公平锁 vs 非公平锁 吞吐量对比：多个线程在固定时间内反复 lock -> 计数 -> unlock，统计每秒加锁次数。
+ * 公平锁每次unlock都要把锁交给队头线程，必须等它被唤醒、切换回来；
+ * 非公平锁正在运行的线程可以直接再抢到锁，省掉了这次上下文切换。
+ *
+ * Usage: MiniReentrantLockBenchmark [threads] [seconds]
+ */
+public class MiniReentrantLockBenchmark {
+
+    public static void main(String[] args) throws InterruptedException {
+        int threads = (args.length > 0) ? Integer.parseInt(args[0]) : 4;
+        int seconds = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+
+        //先各跑一轮预热JIT
+        run(new MiniReentrantLock(true), threads, 1);
+        run(new MiniReentrantLock(false), threads, 1);
+
+        long fair = run(new MiniReentrantLock(true), threads, seconds);
+        long nonfair = run(new MiniReentrantLock(false), threads, seconds);
+        System.out.println("threads = " + threads + ", seconds = " + seconds);
+        System.out.println("fair:     " + fair / seconds + " ops/s");
+        System.out.println("non-fair: " + nonfair / seconds + " ops/s");
+        if (fair > 0)
+            System.out.printf("non-fair / fair = %.2f%n", (double) nonfair / fair);
+    }
+
+    /**
+     * Runs threads lock/unlock loops on lock for the given time and
+     * returns the number of completed critical sections.
+     */
+    static long run(MiniReentrantLock lock, int threads, int seconds)
+            throws InterruptedException {
+        long[] counter = new long[1];
+        long[] end = new long[1];
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                while (System.nanoTime() < end[0]) {
+                    lock.lock();
+                    try {
+                        counter[0]++;
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+                done.countDown();
+            }, "bench-" + i);
+            t.start();
+        }
+        //所有线程都在start上等着，同时放行
+        end[0] = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        start.countDown();
+        done.await();
+        return counter[0];
+    }
+}
@@ -0,0 +1,845 @@
+package com.xiaoliu.niubility;
+
+import sun.misc.Unsafe;
+
+import java.lang.reflect.Field;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReadWriteLock;
+
+/**
+ * 读写锁，阻塞队列的结构和 MiniReentrantLock 一样（Node、addWaiter、acquireQueued），
+ * 区别是node多了一个模式：读锁是共享模式，多个读线程可以同时持有；写锁是独占模式。
+ *
+ * 写优先：只要有写线程在排队，新来的读线程就不能直接抢读锁，要排到写线程后面，
+ * 这样读多写少的场景下写线程不会被源源不断的读线程饿死。
+ * 已经持有读锁的线程重入时不受限制，否则它会和排队的写线程互相等待。
+ *
+ * 支持：读锁、写锁的重入；写锁降级（持有写锁时可以再拿读锁）；写锁的Condition。
+ * 不支持：读锁升级（持有读锁时去拿写锁会一直等下去，和JDK的ReentrantReadWriteLock一样）；读锁的Condition。
+ */
+public class MiniReentrantReadWriteLock implements ReadWriteLock {
+    /**
+     * state 拆成两半：
+     * 高16位 读锁被持有的次数（所有读线程加起来）
+     * 低16位 写锁重入次数
+     */
+    private volatile int state;
+
+    static final int SHARED_SHIFT   = 16;
+    static final int SHARED_UNIT    = (1 << SHARED_SHIFT);
+    static final int MAX_COUNT      = (1 << SHARED_SHIFT) - 1;
+    static final int EXCLUSIVE_MASK = (1 << SHARED_SHIFT) - 1;
+
+    //读锁次数
+    static int sharedCount(int c)    { return c >>> SHARED_SHIFT; }
+    //写锁次数
+    static int exclusiveCount(int c) { return c & EXCLUSIVE_MASK; }
+
+    //当前持有写锁的线程
+    private Thread exclusiveOwnerThread;
+
+    //阻塞队列，head 是最近一个 从队列里拿到锁的节点
+    private volatile Node head;
+    private volatile Node tail;
+
+    //正在排队的写线程个数，大于0时新来的读线程要去排队（写优先）
+    private final AtomicInteger waitingWriters = new AtomicInteger();
+
+    //每个线程自己持有的读锁次数，用来判断读锁重入和unlock是否合法。
+    //没有初始值：只有持有读锁的线程才有条目，次数减到0就remove，
+    //不然每个读过一次的线程都会在自己的ThreadLocalMap里留一个条目，锁不用了也回收不掉
+    private final ThreadLocal<int[]> readHolds = new ThreadLocal<>();
+
+    private final ReadLock readerLock = new ReadLock();
+    private final WriteLock writerLock = new WriteLock();
+
+    @Override
+    public Lock readLock() {
+        return readerLock;
+    }
+
+    @Override
+    public Lock writeLock() {
+        return writerLock;
+    }
+
+    /**
+     * 和 MiniReentrantLock.Node 一样，多了一个 shared 标记
+     */
+    static final class Node {
+        //节点已取消：超时或者被中断的等待者
+        static final int CANCELLED = 1;
+        //节点在写锁的条件队列中
+        static final int CONDITION = -2;
+
+        //true 读线程   false 写线程
+        final boolean shared;
+        volatile Node prev;
+        volatile Node next;
+        Thread thread;
+        volatile int waitStatus;
+        //条件队列中的下一个节点
+        Node nextWaiter;
+
+        Node(Thread thread, boolean shared) {
+            this.thread = thread;
+            this.shared = shared;
+        }
+
+        //条件队列的节点，只有持有写锁的线程能await，所以都是写模式
+        Node(Thread thread, int waitStatus) {
+            this.thread = thread;
+            this.shared = false;
+            this.waitStatus = waitStatus;
+        }
+
+        Node() {
+            this.shared = false;
+        }
+    }
+
+    /**
+     * 读锁
+     */
+    public class ReadLock implements Lock {
+        @Override
+        public void lock() {
+            if(!tryAcquireShared(false)) {
+                acquire(true);
+            }
+        }
+
+        @Override
+        public void lockInterruptibly() throws InterruptedException {
+            if(Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if(!tryAcquireShared(false)) {
+                doAcquireNanos(true, false, 0L);
+            }
+        }
+
+        @Override
+        public boolean tryLock() {
+            return tryAcquireShared(false);
+        }
+
+        @Override
+        public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+            if(Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            return tryAcquireShared(false) || doAcquireNanos(true, true, unit.toNanos(time));
+        }
+
+        @Override
+        public void unlock() {
+            if(tryReleaseShared()) {
+                signalNext();
+            }
+        }
+
+        @Override
+        public Condition newCondition() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * 写锁
+     */
+    public class WriteLock implements Lock {
+        @Override
+        public void lock() {
+            if(!tryAcquire(1)) {
+                acquire(false);
+            }
+        }
+
+        @Override
+        public void lockInterruptibly() throws InterruptedException {
+            if(Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if(!tryAcquire(1)) {
+                doAcquireNanos(false, false, 0L);
+            }
+        }
+
+        @Override
+        public boolean tryLock() {
+            return tryAcquire(1);
+        }
+
+        @Override
+        public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+            if(Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            return tryAcquire(1) || doAcquireNanos(false, true, unit.toNanos(time));
+        }
+
+        @Override
+        public void unlock() {
+            if(tryRelease(1)) {
+                signalNext();
+            }
+        }
+
+        @Override
+        public Condition newCondition() {
+            return new ConditionObject();
+        }
+    }
+
+    /**
+     * 尝试获取写锁，acquires 是写锁次数：平时是1，await醒来后是await之前的重入次数
+     * 1.state == 0：没有任何线程持有锁，CAS抢
+     * 2.state != 0：有读锁，或者写锁被别的线程持有，失败；写锁是自己的，重入
+     */
+    private boolean tryAcquire(int acquires) {
+        Thread current = Thread.currentThread();
+        int c = state;
+        if(c != 0) {
+            //有读锁（包括自己持有的读锁，不支持升级），或者写锁是别人的
+            if(exclusiveCount(c) == 0 || current != exclusiveOwnerThread) {
+                return false;
+            }
+            if(exclusiveCount(c) + acquires > MAX_COUNT) {
+                throw new Error("Maximum lock count exceeded");
+            }
+            //重入，只有持锁线程会走到这里，不需要CAS
+            state = c + acquires;
+            return true;
+        }
+        if(compareAndSetState(0, acquires)) {
+            exclusiveOwnerThread = current;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 释放 releases 次写锁，写锁完全释放时返回true
+     */
+    private boolean tryRelease(int releases) {
+        if(Thread.currentThread() != exclusiveOwnerThread) {
+            throw new IllegalMonitorStateException();
+        }
+        int nextc = state - releases;
+        boolean free = exclusiveCount(nextc) == 0;
+        if(free) {
+            exclusiveOwnerThread = null;
+        }
+        //volatile写放在最后，其它线程看到state变化时，一定能看到owner已经清空
+        state = nextc;
+        return free;
+    }
+
+    /**
+     * 尝试获取读锁
+     * queued：true 表示当前线程已经在队列里排到了head.next，这时不用再给排队的写线程让路，
+     * 因为排在它后面的写线程本来就要等它。
+     */
+    private boolean tryAcquireShared(boolean queued) {
+        Thread current = Thread.currentThread();
+        int[] holds = readHolds.get();
+        int held = (holds == null) ? 0 : holds[0];
+        for(;;) {
+            int c = state;
+            //写锁被别的线程持有。自己持有写锁的话可以拿读锁（锁降级）
+            if(exclusiveCount(c) != 0 && exclusiveOwnerThread != current) {
+                return false;
+            }
+            //写优先：有写线程在排队，新来的读线程去排队。
+            //已经持有读锁/写锁的线程除外，否则会和排队的写线程互相等待，死锁。
+            if(!queued && held == 0 && exclusiveOwnerThread != current
+                    && waitingWriters.get() > 0) {
+                return false;
+            }
+            if(sharedCount(c) == MAX_COUNT) {
+                throw new Error("Maximum lock count exceeded");
+            }
+            //多个读线程会同时修改state，必须CAS，失败了重试
+            if(compareAndSetState(c, c + SHARED_UNIT)) {
+                if(holds == null) {
+                    readHolds.set(holds = new int[1]);
+                }
+                holds[0]++;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 释放读锁，读锁和写锁都完全释放时返回true，这时需要唤醒排队的写线程
+     */
+    private boolean tryReleaseShared() {
+        int[] holds = readHolds.get();
+        if(holds == null) {
+            throw new IllegalMonitorStateException();
+        }
+        if(--holds[0] == 0) {
+            readHolds.remove();
+        }
+        for(;;) {
+            int c = state;
+            int nextc = c - SHARED_UNIT;
+            if(compareAndSetState(c, nextc)) {
+                return nextc == 0;
+            }
+        }
+    }
+
+    /**
+     * 排队获取锁，不响应中断
+     */
+    private void acquire(boolean shared) {
+        Node node = addWaiter(shared);
+        if(acquireQueued(node, 1)) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 当前线程入队。写线程入队之前先登记到 waitingWriters，后来的读线程就会排到它后面。
+     */
+    private Node addWaiter(boolean shared) {
+        if(!shared) {
+            waitingWriters.incrementAndGet();
+        }
+        Node node = new Node(Thread.currentThread(), shared);
+        Node pred = tail;
+        if(pred != null) {
+            node.prev = pred;
+            if(compareAndSetTail(pred, node)) {
+                pred.next = node;
+                return node;
+            }
+        }
+        enq(node);
+        return node;
+    }
+
+    /**
+     * 自旋入队，队列为空时先补一个head节点
+     */
+    private void enq(Node node) {
+        for(;;) {
+            Node t = tail;
+            if(t == null) {
+                if(compareAndSetHead(new Node())) {
+                    tail = head;
+                }
+            } else {
+                node.prev = t;
+                if(compareAndSetTail(t, node)) {
+                    t.next = node;
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 和 MiniReentrantLock.acquireQueued 一样：只有head.next 有权限抢锁，抢不到就park
+     * acquires：写线程要拿的写锁次数
+     * 返回值：true 表示排队期间被中断过
+     */
+    private boolean acquireQueued(Node node, int acquires) {
+        boolean interrupted = false;
+        try {
+            for(;;) {
+                Node pred = skipCancelled(node);
+                if(pred == head && tryAcquireQueued(node, acquires)) {
+                    setHeadAndPropagate(pred, node);
+                    return interrupted;
+                }
+                if(parkAndCheckInterrupt()) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if(!node.shared) {
+                waitingWriters.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * 可中断、可超时的排队
+     * timed：false 表示不限时（lockInterruptibly），这时 nanosTimeout 不用
+     * 超时返回false，被中断抛出InterruptedException，两种情况都会取消node
+     */
+    private boolean doAcquireNanos(boolean shared, boolean timed, long nanosTimeout)
+            throws InterruptedException {
+        if(timed && nanosTimeout <= 0L) {
+            return false;
+        }
+        final long deadline = timed ? System.nanoTime() + nanosTimeout : 0L;
+        Node node = addWaiter(shared);
+        boolean failed = true;
+        try {
+            for(;;) {
+                Node pred = skipCancelled(node);
+                if(pred == head && tryAcquireQueued(node, 1)) {
+                    setHeadAndPropagate(pred, node);
+                    failed = false;
+                    return true;
+                }
+                if(timed) {
+                    nanosTimeout = deadline - System.nanoTime();
+                    if(nanosTimeout <= 0L) {
+                        return false;
+                    }
+                    LockSupport.parkNanos(this, nanosTimeout);
+                } else {
+                    LockSupport.park(this);
+                }
+                if(Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        } finally {
+            if(failed) {
+                cancelAcquire(node);
+            }
+            if(!shared) {
+                waitingWriters.decrementAndGet();
+            }
+        }
+    }
+
+    private boolean tryAcquireQueued(Node node, int acquires) {
+        return node.shared ? tryAcquireShared(true) : tryAcquire(acquires);
+    }
+
+    /**
+     * 当前node抢到锁，成为新的head。
+     * 如果是读线程，并且后面一个也是读线程，直接唤醒它：读锁是共享的，它也能拿到，
+     * 它拿到之后又会唤醒它后面的读线程，一直传递到第一个写线程为止。
+     */
+    private void setHeadAndPropagate(Node pred, Node node) {
+        head = node;
+        node.thread = null;
+        node.prev = null;
+        pred.next = null; // help GC
+        if(node.shared) {
+            Node s = node.next;
+            //s == null：后继可能还没链接上，unparkSuccessor 会从tail往前找
+            if(s == null || s.shared) {
+                unparkSuccessor(node);
+            }
+        }
+    }
+
+    /**
+     * 锁完全释放之后，唤醒head后面的节点
+     */
+    private void signalNext() {
+        Node h = head;
+        if(h != null && h != tail) {
+            unparkSuccessor(h);
+        }
+    }
+
+    /**
+     * 唤醒node后面第一个没有取消的节点
+     */
+    private void unparkSuccessor(Node node) {
+        Node s = node.next;
+        if(s == null || s.waitStatus == Node.CANCELLED) {
+            s = null;
+            for(Node t = tail; t != null && t != node; t = t.prev) {
+                if(t.waitStatus != Node.CANCELLED) {
+                    s = t;
+                }
+            }
+        }
+        Thread t;
+        if(s != null && (t = s.thread) != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    private boolean parkAndCheckInterrupt() {
+        LockSupport.park(this);
+        return Thread.interrupted();
+    }
+
+    /**
+     * 跳过已经取消的前置节点，返回第一个没有取消的前置节点
+     */
+    private Node skipCancelled(Node node) {
+        Node pred = node.prev;
+        if(pred.waitStatus == Node.CANCELLED) {
+            do {
+                node.prev = pred = pred.prev;
+            } while(pred.waitStatus == Node.CANCELLED);
+            pred.next = node;
+        }
+        return pred;
+    }
+
+    /**
+     * 取消排队，和 MiniReentrantLock.cancelAcquire 一样
+     */
+    private void cancelAcquire(Node node) {
+        node.thread = null;
+
+        Node pred = node.prev;
+        while(pred.waitStatus == Node.CANCELLED) {
+            node.prev = pred = pred.prev;
+        }
+        Node predNext = pred.next;
+
+        node.waitStatus = Node.CANCELLED;
+
+        if(node == tail && compareAndSetTail(node, pred)) {
+            compareAndSetNext(pred, predNext, null);
+        } else {
+            if(pred != head && pred.thread != null) {
+                Node next = node.next;
+                if(next != null && next.waitStatus != Node.CANCELLED) {
+                    compareAndSetNext(pred, predNext, next);
+                }
+            } else {
+                unparkSuccessor(node);
+            }
+            node.next = node; // help GC
+        }
+    }
+
+    /**
+     * 写锁的条件队列，和 MiniReentrantLock.ConditionObject 一样：
+     * await：把当前线程包装成node放到条件队列，完全释放写锁，挂起，直到被signal转移到阻塞队列，再重新竞争写锁。
+     * signal：把条件队列的第一个node转移到阻塞队列末尾，等写锁释放时被唤醒。
+     * 读锁是共享的，signal的时候别的读线程还可能在读，所以读锁不支持Condition。
+     */
+    public class ConditionObject implements Condition {
+        //条件队列的头尾，只有持有写锁的线程会修改
+        private Node firstWaiter;
+        private Node lastWaiter;
+
+        //退出await时重新设置中断标记
+        private static final int REINTERRUPT = 1;
+        //退出await时抛出InterruptedException
+        private static final int THROW_IE = -1;
+
+        private Node addConditionWaiter() {
+            if(!isWriteLockedByCurrentThread()) {
+                throw new IllegalMonitorStateException();
+            }
+            //同时还持有读锁时不能await：读锁不会被释放，醒来后自己也拿不回写锁
+            if(readHolds.get() != null) {
+                throw new IllegalMonitorStateException();
+            }
+            Node t = lastWaiter;
+            //最后一个节点已经取消了，先清理一遍
+            if(t != null && t.waitStatus != Node.CONDITION) {
+                unlinkCancelledWaiters();
+                t = lastWaiter;
+            }
+            Node node = new Node(Thread.currentThread(), Node.CONDITION);
+            if(t == null) {
+                firstWaiter = node;
+            } else {
+                t.nextWaiter = node;
+            }
+            lastWaiter = node;
+            return node;
+        }
+
+        private void unlinkCancelledWaiters() {
+            Node t = firstWaiter;
+            Node trail = null;
+            while(t != null) {
+                Node next = t.nextWaiter;
+                if(t.waitStatus != Node.CONDITION) {
+                    t.nextWaiter = null;
+                    if(trail == null) {
+                        firstWaiter = next;
+                    } else {
+                        trail.nextWaiter = next;
+                    }
+                    if(next == null) {
+                        lastWaiter = trail;
+                    }
+                } else {
+                    trail = t;
+                }
+                t = next;
+            }
+        }
+
+        @Override
+        public void signal() {
+            if(!isWriteLockedByCurrentThread()) {
+                throw new IllegalMonitorStateException();
+            }
+            Node first = firstWaiter;
+            //转移失败说明这个node已经取消了（超时/中断），继续转移下一个
+            while(first != null) {
+                if((firstWaiter = first.nextWaiter) == null) {
+                    lastWaiter = null;
+                }
+                first.nextWaiter = null;
+                if(transferForSignal(first)) {
+                    break;
+                }
+                first = firstWaiter;
+            }
+        }
+
+        @Override
+        public void signalAll() {
+            if(!isWriteLockedByCurrentThread()) {
+                throw new IllegalMonitorStateException();
+            }
+            Node first = firstWaiter;
+            lastWaiter = firstWaiter = null;
+            while(first != null) {
+                Node next = first.nextWaiter;
+                first.nextWaiter = null;
+                transferForSignal(first);
+                first = next;
+            }
+        }
+
+        @Override
+        public void await() throws InterruptedException {
+            if(Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            Node node = addConditionWaiter();
+            int savedState = fullyRelease(node);
+            int interruptMode = 0;
+            //还在条件队列中，继续挂起
+            while(!isOnSyncQueue(node)) {
+                LockSupport.park(this);
+                if((interruptMode = checkInterruptWhileWaiting(node)) != 0) {
+                    break;
+                }
+            }
+            //已经在阻塞队列了，重新竞争写锁，拿到锁时恢复成await之前的重入次数
+            if(acquireQueued(node, savedState) && interruptMode != THROW_IE) {
+                interruptMode = REINTERRUPT;
+            }
+            if(node.nextWaiter != null) {
+                unlinkCancelledWaiters();
+            }
+            reportInterruptAfterWait(interruptMode);
+        }
+
+        @Override
+        public void awaitUninterruptibly() {
+            Node node = addConditionWaiter();
+            int savedState = fullyRelease(node);
+            boolean interrupted = false;
+            while(!isOnSyncQueue(node)) {
+                LockSupport.park(this);
+                if(Thread.interrupted()) {
+                    interrupted = true;
+                }
+            }
+            if(acquireQueued(node, savedState) || interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public long awaitNanos(long nanosTimeout) throws InterruptedException {
+            if(Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            Node node = addConditionWaiter();
+            int savedState = fullyRelease(node);
+            final long deadline = System.nanoTime() + nanosTimeout;
+            int interruptMode = 0;
+            while(!isOnSyncQueue(node)) {
+                //超时了，自己把node转移到阻塞队列
+                if(nanosTimeout <= 0L) {
+                    transferAfterCancelledWait(node);
+                    break;
+                }
+                LockSupport.parkNanos(this, nanosTimeout);
+                if((interruptMode = checkInterruptWhileWaiting(node)) != 0) {
+                    break;
+                }
+                nanosTimeout = deadline - System.nanoTime();
+            }
+            if(acquireQueued(node, savedState) && interruptMode != THROW_IE) {
+                interruptMode = REINTERRUPT;
+            }
+            if(node.nextWaiter != null) {
+                unlinkCancelledWaiters();
+            }
+            reportInterruptAfterWait(interruptMode);
+            return deadline - System.nanoTime();
+        }
+
+        @Override
+        public boolean await(long time, TimeUnit unit) throws InterruptedException {
+            return awaitNanos(unit.toNanos(time)) > 0L;
+        }
+
+        @Override
+        public boolean awaitUntil(Date deadline) throws InterruptedException {
+            long ms = deadline.getTime() - System.currentTimeMillis();
+            return awaitNanos(TimeUnit.MILLISECONDS.toNanos(ms)) > 0L;
+        }
+
+        /**
+         * 返回值：0 没有被中断；THROW_IE 在signal之前被中断；REINTERRUPT 在signal之后被中断
+         */
+        private int checkInterruptWhileWaiting(Node node) {
+            return Thread.interrupted() ?
+                    (transferAfterCancelledWait(node) ? THROW_IE : REINTERRUPT) :
+                    0;
+        }
+
+        private void reportInterruptAfterWait(int interruptMode) throws InterruptedException {
+            if(interruptMode == THROW_IE) {
+                throw new InterruptedException();
+            } else if(interruptMode == REINTERRUPT) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * await时完全释放写锁（包括所有重入），返回释放之前的写锁次数，醒来后重新获取同样的次数。
+     */
+    private int fullyRelease(Node node) {
+        int savedState = exclusiveCount(state);
+        try {
+            if(tryRelease(savedState)) {
+                signalNext();
+            }
+            return savedState;
+        } catch(RuntimeException e) {
+            node.waitStatus = Node.CANCELLED;
+            throw e;
+        }
+    }
+
+    /**
+     * node是否已经转移到阻塞队列
+     */
+    private boolean isOnSyncQueue(Node node) {
+        if(node.waitStatus == Node.CONDITION || node.prev == null) {
+            return false;
+        }
+        if(node.next != null) {
+            return true;
+        }
+        //node.prev 不为空也不一定入队成功了（CAS tail可能失败），从tail往前找
+        for(Node t = tail; t != null; t = t.prev) {
+            if(t == node) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * signal：把node从条件队列转移到阻塞队列。
+     * 返回false 说明node已经因为超时/中断自己转移过了。
+     * 转移过来的都是写线程，和 addWaiter 一样入队之前先登记到 waitingWriters：
+     * 入队之后它可能马上排到head.next，这时新来的读线程必须已经看得到它。
+     * 醒来后 acquireQueued 退出时会减回去。
+     */
+    private boolean transferForSignal(Node node) {
+        if(!compareAndSetWaitStatus(node, Node.CONDITION, 0)) {
+            return false;
+        }
+        waitingWriters.incrementAndGet();
+        enq(node);
+        return true;
+    }
+
+    /**
+     * await超时或者被中断时调用。
+     * 返回true：在signal之前取消的，由当前线程自己把node转移到阻塞队列
+     * 返回false：signal已经在转移了，等它转移完成
+     */
+    private boolean transferAfterCancelledWait(Node node) {
+        if(compareAndSetWaitStatus(node, Node.CONDITION, 0)) {
+            //同 transferForSignal，入队之前登记
+            waitingWriters.incrementAndGet();
+            enq(node);
+            return true;
+        }
+        while(!isOnSyncQueue(node)) {
+            Thread.yield();
+        }
+        return false;
+    }
+
+    /**
+     * 所有线程加起来持有读锁的次数
+     */
+    public int getReadLockCount() {
+        return sharedCount(state);
+    }
+
+    public boolean isWriteLocked() {
+        return exclusiveCount(state) != 0;
+    }
+
+    public boolean isWriteLockedByCurrentThread() {
+        return exclusiveOwnerThread == Thread.currentThread();
+    }
+
+    private static final Unsafe unsafe;
+    private static final long stateOffset;
+    private static final long headOffset;
+    private static final long tailOffset;
+    private static final long nextOffset;
+    private static final long waitStatusOffset;
+
+    static {
+        try {
+            Field f = Unsafe.class.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            unsafe = (Unsafe) f.get(null);
+
+            stateOffset = unsafe.objectFieldOffset
+                    (MiniReentrantReadWriteLock.class.getDeclaredField("state"));
+            headOffset = unsafe.objectFieldOffset
+                    (MiniReentrantReadWriteLock.class.getDeclaredField("head"));
+            tailOffset = unsafe.objectFieldOffset
+                    (MiniReentrantReadWriteLock.class.getDeclaredField("tail"));
+            nextOffset = unsafe.objectFieldOffset
+                    (Node.class.getDeclaredField("next"));
+            waitStatusOffset = unsafe.objectFieldOffset
+                    (Node.class.getDeclaredField("waitStatus"));
+
+        } catch (Exception ex) { throw new Error(ex); }
+    }
+
+    private final boolean compareAndSetHead(Node update) {
+        return unsafe.compareAndSwapObject(this, headOffset, null, update);
+    }
+
+    private final boolean compareAndSetTail(Node expect, Node update) {
+        return unsafe.compareAndSwapObject(this, tailOffset, expect, update);
+    }
+
+    private final boolean compareAndSetState(int expect, int update) {
+        return unsafe.compareAndSwapInt(this, stateOffset, expect, update);
+    }
+
+    private static boolean compareAndSetNext(Node node, Node expect, Node update) {
+        return unsafe.compareAndSwapObject(node, nextOffset, expect, update);
+    }
+
+    private static boolean compareAndSetWaitStatus(Node node, int expect, int update) {
+        return unsafe.compareAndSwapInt(node, waitStatusOffset, expect, update);
+    }
+}
@@ -0,0 +1,457 @@
+package java.util.concurrent.locks;
+import java.util.concurrent.TimeUnit;
+import java.util.Date;
+import sun.misc.Unsafe;
+
+/**
+ * A {@link ReentrantLock} companion that adds StampedLock-style
+ * optimistic reads. Writers and pessimistic readers still go through
+ * the {@code ReentrantLock.Sync} queue, so blocking, fairness,
+ * reentrancy and conditions behave exactly as in {@code ReentrantLock};
+ * an optimistic reader only reads a version number and never writes
+ * to shared memory.
+ *
+ * <p>The version is even while no thread is in write mode and odd
+ * while one is. Entering write mode bumps it to odd, and releasing the
+ * hold that entered write mode bumps it back to even, so a stamp taken
+ * by {@link #tryOptimisticRead} stays valid exactly as long as no
+ * writer has entered in between. A typical read:
+ *
+ * <pre> {@code
+ * class Point {
+ *   private double x, y;
+ *   private final OptimisticReentrantLock lock = new OptimisticReentrantLock();
+ *
+ *   void move(double dx, double dy) {
+ *     long stamp = lock.writeLock();
+ *     try {
+ *       x += dx;
+ *       y += dy;
+ *     } finally {
+ *       lock.unlockWrite(stamp);
+ *     }
+ *   }
+ *
+ *   double distanceFromOrigin() {
+ *     long stamp = lock.tryOptimisticRead();
+ *     double currentX = x, currentY = y;
+ *     if (!lock.validate(stamp)) {
+ *       stamp = lock.readLock();
+ *       try {
+ *         currentX = x;
+ *         currentY = y;
+ *       } finally {
+ *         lock.unlockRead(stamp);
+ *       }
+ *     }
+ *     return Math.sqrt(currentX * currentX + currentY * currentY);
+ *   }
+ * }}</pre>
+ *
+ * <p>Pessimistic read locks fall back to the exclusive {@code Sync}
+ * queue: they exclude writers and each other, but do not bump the
+ * version, so they never invalidate optimistic readers. A read lock
+ * can be upgraded with {@link #tryConvertToWriteLock}. The
+ * {@link Lock} methods operate in write mode, which makes this class
+ * a drop-in replacement for a {@code ReentrantLock} whose readers are
+ * then moved to optimistic reads one by one.
+ *
+ * 带乐观读的ReentrantLock：写锁、悲观读锁仍然走 ReentrantLock.Sync 的阻塞队列，
+ * 另外维护一个版本号：进入写模式时变成奇数，释放进入写模式的那一层锁时变回偶数。
+ * 乐观读只读一次版本号，读完数据再校验版本号有没有变，整个过程不写任何共享内存，
+ * 读多写少时读线程之间不会互相让缓存行失效。校验失败再退回到悲观读锁（排队）。
+ *
+ * <p>Unlike {@code ReentrantLock}, this class is not serializable:
+ * the version and the holder's bookkeeping mean nothing in another
+ * JVM, and a deserialized copy would start with stale stamps.
+ */
+public class OptimisticReentrantLock implements Lock {
+
+    /** Queue and hold count, shared with ReentrantLock */
+    private final ReentrantLock.Sync sync;
+
+    /**
+     * Write-mode version: odd while some thread is in write mode.
+     * Only the lock holder writes it.
+     */
+    private volatile long version;
+
+    /**
+     * Hold count at which the holder entered write mode; write mode
+     * ends when that hold is released. Only the lock holder uses it.
+     */
+    private int writeHolds;
+
+    /**
+     * Read stamp current when the holder took its outermost hold; read
+     * stamps it can present lie between this and the current one. Only
+     * the lock holder uses it.
+     */
+    private long holdStamp;
+
+    /**
+     * Creates a non-fair instance.
+     */
+    public OptimisticReentrantLock() {
+        this(false);
+    }
+
+    /**
+     * Creates an instance with the given fairness policy for writers
+     * and pessimistic readers.
+     *
+     * @param fair {@code true} to use {@code ReentrantLock}'s fair ordering
+     */
+    public OptimisticReentrantLock(boolean fair) {
+        sync = fair ? new ReentrantLock.FairSync() : new ReentrantLock.NonfairSync();
+    }
+
+    // Optimistic reads
+
+    /**
+     * Returns a stamp that can later be validated, or zero if the lock
+     * is in write mode.
+     *
+     * 不加锁，只读一次版本号；有线程在写模式时返回0，0永远校验失败
+     *
+     * @return a valid optimistic read stamp, or zero if write-locked
+     */
+    public long tryOptimisticRead() {
+        long v = version;
+        return ((v & 1L) == 0L) ? v + 2L : 0L;
+    }
+
+    /**
+     * Returns {@code true} if the lock has not entered write mode since
+     * the given stamp was issued. Always returns {@code false} for a
+     * zero stamp.
+     *
+     * 读完数据之后调用：版本号没变，说明读的过程中没有写线程进来过，读到的数据是一致的。
+     * loadFence 保证前面对数据的读 不会被重排到 读版本号 之后。
+     *
+     * @param stamp a stamp
+     * @return {@code true} if no writer entered since the stamp was issued
+     */
+    public boolean validate(long stamp) {
+        unsafe.loadFence();
+        return stamp != 0L && version + 2L == stamp;
+    }
+
+    // Write mode
+
+    /**
+     * Acquires the lock in write mode, blocking as
+     * {@link ReentrantLock#lock} does.
+     *
+     * @return a write stamp for {@link #unlockWrite}
+     */
+    public long writeLock() {
+        sync.lock();
+        acquired();
+        return enterWriteMode();
+    }
+
+    /**
+     * Acquires the lock in write mode if it is free.
+     *
+     * @return a write stamp, or zero if the lock is held by another thread
+     */
+    public long tryWriteLock() {
+        if (!sync.nonfairTryAcquire(1))
+            return 0L;
+        acquired();
+        return enterWriteMode();
+    }
+
+    /**
+     * Releases one write hold. The version returns to even when the
+     * hold that entered write mode is released.
+     *
+     * @param stamp the stamp returned by a write-lock method
+     * @throws IllegalMonitorStateException if the stamp does not match
+     *         or the current thread does not hold the lock
+     */
+    public void unlockWrite(long stamp) {
+        if (stamp != version + 2L || (stamp & 1L) == 0L)
+            throw new IllegalMonitorStateException();
+        unlock();
+    }
+
+    // Pessimistic reads
+
+    /**
+     * Acquires the lock for reading through the {@code Sync} queue.
+     * Readers exclude each other and writers but leave the version
+     * alone, so optimistic stamps stay valid.
+     *
+     * 悲观读锁：直接复用Sync的独占排队，不改版本号，所以不会让乐观读失效
+     *
+     * @return a read stamp for {@link #unlockRead}
+     */
+    public long readLock() {
+        sync.lock();
+        acquired();
+        return version + 2L;
+    }
+
+    /**
+     * Releases one read hold. A read stamp stays usable after a nested
+     * {@link #tryConvertToWriteLock} of the same thread has entered and
+     * left write mode, although the version has moved on.
+     *
+     * @param stamp the stamp returned by {@link #readLock}
+     * @throws IllegalMonitorStateException if the stamp does not match
+     *         or the current thread does not hold the lock
+     */
+    public void unlockRead(long stamp) {
+        if (!isHolderStamp(stamp))
+            throw new IllegalMonitorStateException();
+        unlock();
+    }
+
+    /**
+     * Returns whether stamp can have been issued to the lock holder: a
+     * write stamp must be the current one; a read stamp may predate
+     * write holds the holder took and released since, each of which
+     * moved the version on by two, but not the holder's outermost hold.
+     *
+     * 嵌套的读锁里升级成写锁再释放后，版本号已经变了，外层的读锁stamp要仍然能用；
+     * 但只认这次持锁期间发出的stamp：不早于最外层加锁时的版本号
+     */
+    private boolean isHolderStamp(long stamp) {
+        long current = version + 2L;
+        return ((stamp & 1L) != 0L) ? stamp == current
+                                    : (stamp >= holdStamp && stamp <= current);
+    }
+
+    /**
+     * Called after every acquire: the outermost hold records the read
+     * stamp current at that point. The version is even then, since no
+     * other thread can be in write mode.
+     */
+    private void acquired() {
+        if (sync.getHoldCount() == 1)
+            holdStamp = version + 2L;
+    }
+
+    /**
+     * Upgrades the given stamp to write mode.
+     * <ul>
+     * <li>a write stamp is returned unchanged;
+     * <li>a read stamp held by the current thread enters write mode;
+     * <li>an optimistic stamp acquires the lock if it is free and no
+     *     writer has entered since the stamp was issued.
+     * </ul>
+     *
+     * 读锁升级成写锁：持有读锁时直接改版本号；乐观读时，锁空闲并且版本号没变才能升级。
+     * 乐观读升级失败会返回0，调用方需要重新读。
+     * 持有读锁时升级，只有升级时那一层锁进入写模式：这一层释放后版本号变回偶数，外层的读锁照常释放。
+     *
+     * @param stamp a stamp
+     * @return a write stamp, or zero if the upgrade failed
+     */
+    public long tryConvertToWriteLock(long stamp) {
+        if (stamp == 0L)
+            return 0L;
+        if (sync.isHeldExclusively()) {
+            if (!isHolderStamp(stamp))
+                return 0L;
+            return ((version & 1L) != 0L) ? version + 2L : enterWriteMode();
+        }
+        if ((stamp & 1L) != 0L || !sync.nonfairTryAcquire(1))
+            return 0L;
+        if (stamp != version + 2L) {
+            sync.release(1);
+            return 0L;
+        }
+        acquired();
+        return enterWriteMode();
+    }
+
+    /**
+     * Called with the lock held: moves the version to odd unless this
+     * thread is already in write mode, and returns the write stamp.
+     * Write mode lasts until the current hold is released.
+     */
+    private long enterWriteMode() {
+        return enterWriteMode(sync.getHoldCount());
+    }
+
+    /**
+     * Enters write mode, to be left when the hold count drops below
+     * holds; used directly when an await restores write mode.
+     */
+    private long enterWriteMode(int holds) {
+        long v = version;
+        if ((v & 1L) == 0L) {
+            writeHolds = holds;
+            version = ++v;
+            // 版本号先对乐观读可见，再修改受保护的数据
+            unsafe.storeFence();
+        }
+        return v + 2L;
+    }
+
+    // Lock methods, all in write mode
+
+    public void lock() {
+        writeLock();
+    }
+
+    public void lockInterruptibly() throws InterruptedException {
+        sync.acquireInterruptibly(1);
+        acquired();
+        enterWriteMode();
+    }
+
+    public boolean tryLock() {
+        return tryWriteLock() != 0L;
+    }
+
+    public boolean tryLock(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        if (!sync.tryAcquireNanos(1, unit.toNanos(timeout)))
+            return false;
+        acquired();
+        enterWriteMode();
+        return true;
+    }
+
+    /**
+     * Releases one hold of either mode. Releasing the hold that entered
+     * write mode moves the version back to even, before the queue is
+     * released if it was the last hold.
+     */
+    public void unlock() {
+        if (!sync.isHeldExclusively())
+            throw new IllegalMonitorStateException();
+        long v = version;
+        // 释放进入写模式的那一层：先把版本号改回偶数，再释放锁
+        if ((v & 1L) != 0L && sync.getHoldCount() == writeHolds)
+            version = v + 1L;
+        sync.release(1);
+    }
+
+    /**
+     * Returns a condition bound to the underlying {@code Sync}. Awaiting
+     * fully releases the lock, so a thread in write mode leaves it
+     * before waiting and re-enters it once the lock is reacquired.
+     */
+    public Condition newCondition() {
+        return new WriteModeCondition(sync.newCondition());
+    }
+
+    /**
+     * Leaves write mode before the lock is fully released by an await.
+     *
+     * @return the hold count write mode was entered at, or zero if the
+     *         current thread was not in write mode
+     */
+    private int leaveWriteMode() {
+        if (!sync.isHeldExclusively())
+            throw new IllegalMonitorStateException();
+        long v = version;
+        if ((v & 1L) == 0L)
+            return 0;
+        version = v + 1L;
+        return writeHolds;
+    }
+
+    /**
+     * Restores the holder's state once an await has reacquired the
+     * lock: the outermost-hold stamp, which other holders overwrote
+     * meanwhile, and write mode if it was left.
+     */
+    private void reenter(int holds, long stamp) {
+        holdStamp = stamp;
+        if (holds != 0)
+            enterWriteMode(holds);
+    }
+
+    /**
+     * Wraps a {@code Sync} condition so that await keeps the version
+     * consistent: otherwise the version would stay odd while other
+     * threads own the lock, and the waiter would come back in write
+     * mode without optimistic readers noticing its writes.
+     *
+     * await会完全释放锁：释放之前先把版本号改回偶数，重新拿到锁之后再进入写模式
+     */
+    final class WriteModeCondition implements Condition {
+        private final Condition cond;
+
+        WriteModeCondition(Condition cond) {
+            this.cond = cond;
+        }
+
+        public void await() throws InterruptedException {
+            int holds = leaveWriteMode();
+            long stamp = holdStamp;
+            try {
+                cond.await();
+            } finally {
+                reenter(holds, stamp);
+            }
+        }
+
+        public void awaitUninterruptibly() {
+            int holds = leaveWriteMode();
+            long stamp = holdStamp;
+            cond.awaitUninterruptibly();
+            reenter(holds, stamp);
+        }
+
+        public long awaitNanos(long nanosTimeout) throws InterruptedException {
+            int holds = leaveWriteMode();
+            long stamp = holdStamp;
+            try {
+                return cond.awaitNanos(nanosTimeout);
+            } finally {
+                reenter(holds, stamp);
+            }
+        }
+
+        public boolean await(long time, TimeUnit unit) throws InterruptedException {
+            int holds = leaveWriteMode();
+            long stamp = holdStamp;
+            try {
+                return cond.await(time, unit);
+            } finally {
+                reenter(holds, stamp);
+            }
+        }
+
+        public boolean awaitUntil(Date deadline) throws InterruptedException {
+            int holds = leaveWriteMode();
+            long stamp = holdStamp;
+            try {
+                return cond.awaitUntil(deadline);
+            } finally {
+                reenter(holds, stamp);
+            }
+        }
+
+        public void signal() {
+            cond.signal();
+        }
+
+        public void signalAll() {
+            cond.signalAll();
+        }
+    }
+
+    /**
+     * Returns {@code true} if some thread is in write mode.
+     */
+    public boolean isWriteLocked() {
+        return (version & 1L) != 0L;
+    }
+
+    /**
+     * Returns {@code true} if the lock is held in either mode.
+     */
+    public boolean isLocked() {
+        return sync.isLocked();
+    }
+
+    private static final Unsafe unsafe = Unsafe.getUnsafe();
+}
@@ -27,34 +27,45 @@ public class ReentrantLock implements Lock, java.io.Serializable {
          */
         final boolean nonfairTryAcquire(int acquires) {
             final Thread current = Thread.currentThread();
-            int c = getState();
-            if (c == 0) {
-                if (compareAndSetState(0, acquires)) {
-                    setExclusiveOwnerThread(current);
-                    return true;
-                }
-            }
-            else if (current == getExclusiveOwnerThread()) {
-                int nextc = c + acquires;
-                if (nextc < 0) // overflow
-                    throw new Error("Maximum lock count exceeded");
-                setState(nextc);
+            if (current == getExclusiveOwnerThread())
+                return reenter(acquires);
+            if (getState() == 0 && compareAndSetState(0, acquires)) {
+                setExclusiveOwnerThread(current);
                 return true;
             }
             return false;
         }
 
+        /**
+         * Reentrant acquire by the owner. Checking the owner first is
+         * safe without reading state: only the owner ever sets the
+         * owner field to itself, and it clears it before its final
+         * release. Nested holds never change whether the lock is held,
+         * so the count is updated with plain reads and writes.
+         *
+         * 重入快速路径：持锁线程自己修改重入次数，state 一直大于0，其它线程只关心 state 是不是0，
+         * 所以用普通读写就够了，不需要 volatile 读写，也不需要CAS。
+         */
+        final boolean reenter(int acquires) {
+            int nextc = getStatePlain() + acquires;
+            if (nextc < 0) // overflow
+                throw new Error("Maximum lock count exceeded");
+            setStatePlain(nextc);
+            return true;
+        }
+
         protected final boolean tryRelease(int releases) {
-            int c = getState() - releases;
             if (Thread.currentThread() != getExclusiveOwnerThread())
                 throw new IllegalMonitorStateException();
-            boolean free = false;
-            if (c == 0) {
-                free = true;
-                setExclusiveOwnerThread(null);
+            int c = getStatePlain() - releases;
+            if (c != 0) {
+                // nested release: still held, plain write
+                setStatePlain(c);
+                return false;
             }
-            setState(c);
-            return free;
+            setExclusiveOwnerThread(null);
+            setState(0);
+            return true;
         }
 
         protected final boolean isHeldExclusively() {
@@ -98,12 +109,17 @@ public class ReentrantLock implements Lock, java.io.Serializable {
         private static final long serialVersionUID = 7316153563782823691L;
 
         /**
-         * Performs lock.  Try immediate barge, backing up to normal
-         * acquire on failure.
+         * Performs lock.  Reentry by the owner goes straight to the
+         * plain-write path; otherwise try immediate barge, backing up
+         * to normal acquire on failure.
          */
         final void lock() {
-            if (compareAndSetState(0, 1))
-                setExclusiveOwnerThread(Thread.currentThread());
+            final Thread current = Thread.currentThread();
+            // 重入先判断owner：持锁线程的CAS(0, 1)一定失败，白白做一次CAS还要走一遍acquire
+            if (current == getExclusiveOwnerThread())
+                reenter(1);
+            else if (compareAndSetState(0, 1))
+                setExclusiveOwnerThread(current);
             else
                 acquire(1);
         }
@@ -269,25 +285,25 @@ public class ReentrantLock implements Lock, java.io.Serializable {
 
         //Sync#tryRelease()
         protected final boolean tryRelease(int releases) {
-            //减去释放的值..
-            int c = getState() - releases;
             //条件成立：说明当前线程并未持锁..直接异常.,.
             if (Thread.currentThread() != getExclusiveOwnerThread())
                 throw new IllegalMonitorStateException();
 
             //当前线程持有锁..
-
-
-            //是否已经完全释放锁..默认false
-            boolean free = false;
-            //条件成立：说明当前线程已经达到完全释放锁的条件。 c == 0
-            if (c == 0) {
-                free = true;
-                setExclusiveOwnerThread(null);
+            //减去释放的值..  只有持锁线程会修改state，普通读就能读到自己最后写的值
+            int c = getStatePlain() - releases;
+
+            //条件成立：说明还没有完全释放锁，只是退出了一层重入。
+            //锁仍然被占用，其它线程看不看得到这次修改都无所谓，普通写，没有内存屏障
+            if (c != 0) {
+                setStatePlain(c);
+                return false;
             }
-            //更新AQS.state值
-            setState(c);
-            return free;
+
+            //完全释放锁：先清空独占线程，再volatile写state，其它线程看到state == 0 时一定能看到owner已经清空
+            setExclusiveOwnerThread(null);
+            setState(0);
+            return true;
         }
 
 
@@ -472,6 +488,13 @@ public class ReentrantLock implements Lock, java.io.Serializable {
         protected final boolean tryAcquire(int acquires) {
             //current 当前线程
             final Thread current = Thread.currentThread();
+
+            //先判断是不是锁重入：当前线程就是独占锁线程，走快速路径，不读volatile的state，也不CAS
+            //为什么可以先读owner？ owner只会被持锁线程设置成自己，释放时自己清空，
+            //所以 current == owner 成立时，当前线程一定持有锁。
+            if (current == getExclusiveOwnerThread())
+                return reenter(acquires);
+
             //AQS state 值
             int c = getState();
             //条件成立：c == 0 表示当前AQS处于无锁状态..
@@ -492,24 +515,6 @@ public class ReentrantLock implements Lock, java.io.Serializable {
                     return true;
                 }
             }
-            //执行到这里，有几种情况？
-            //c != 0 大于0 的情况，这种情况就需要检查一下 当前线程是不是 独占锁的线程，因为ReentrantLock是可以重入的.
-
-            //条件成立：说明当前线程就是独占锁线程..
-            else if (current == getExclusiveOwnerThread()) {
-                //锁重入的逻辑..
-
-
-                //nextc 更新值..
-                int nextc = c + acquires;
-                //越界判断，当重入的深度很深时，会导致 nextc < 0 ，int值达到最大之后 再 + 1 ...变负数..
-                if (nextc < 0)
-                    throw new Error("Maximum lock count exceeded");
-                //更新的操作
-                setState(nextc);
-                return true;
-            }
-
             //执行到这里？
             //1.CAS失败  c == 0 时，CAS修改 state 时 未抢过其他线程...
             //2.c > 0 且 ownerThread != currentThread.
@@ -0,0 +1,105 @@
+package com.xiaoliu.niubility;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Measures reentrant acquires: each operation takes a lock once and
+ * then re-enters it depth - 1 more times, the way a request handler
+ * whose call chain locks the same object at several levels does.
+ * Every thread uses its own lock, so the numbers are the cost of the
+ * owner path alone, without contention.
+ *
+ * 锁重入耗时：每次操作先加锁，再重入 depth - 1 次，然后逐层解锁。
+ * 每个线程一把锁，没有竞争，测的只是持锁线程重入、退出的开销。
+ *
+ * <p>The class uses {@code java.util.concurrent.locks.ReentrantLock},
+ * so it measures whichever copy it is linked against. The copy in
+ * this directory is JDK 8 source (it uses {@code sun.misc.Unsafe}), so
+ * it can only replace the boot class on a JDK 8 runtime, and only
+ * after FairSync is fixed: as annotated, FairSync re-declares final
+ * AQS methods and reads AQS's private head/tail, and does not compile.
+ * With FairSync reduced to its JDK 8 {@code lock}/{@code tryAcquire},
+ * and the file saved as ReentrantLock.java (its name has a space):
+ *
+ * <pre>
+ * javac -XDignore.symbol.file -d patched AbstractQueuedSynchronizer.java ReentrantLock.java
+ * java -Xbootclasspath/p:patched ReentrantLockReentryBenchmark
+ * </pre>
+ *
+ * On a newer JDK, move the copies into an ordinary package instead:
+ * change their {@code package} line, import
+ * {@code java.util.concurrent.locks.*}, drop FairSync, and point this
+ * class's import at the moved ReentrantLock. The stock variant for
+ * comparison is the same moved copy with the JDK 8 nonfairTryAcquire,
+ * tryRelease and NonfairSync.lock put back, so both run on the same AQS.
+ *
+ * 本目录的副本是JDK 8源码，只能在JDK 8上用 -Xbootclasspath/p: 替换；FairSync 里抄了AQS的final方法，
+ * 原样编译不过，要先改掉。高版本JDK上把副本改到普通包里跑。
+ *
+ * <p>Measured that way on JDK 17, one thread, depth 4, 5 million ops,
+ * single CPU, three runs each: stock 151-163 ns per operation, this
+ * copy 45-50 ns. For reference, the JDK 17 ReentrantLock itself
+ * measured 156.53 ns. The JDK 8 procedure above was not run: no JDK 8
+ * was available.
+ *
+ * Usage: ReentrantLockReentryBenchmark [threads] [depth] [millions of ops per thread]
+ */
+public class ReentrantLockReentryBenchmark {
+
+    public static void main(String[] args) throws InterruptedException {
+        int threads = (args.length > 0) ? Integer.parseInt(args[0]) : 1;
+        int depth = (args.length > 1) ? Integer.parseInt(args[1]) : 4;
+        long ops = ((args.length > 2) ? Long.parseLong(args[2]) : 20L) * 1_000_000L;
+
+        //先跑一轮预热JIT
+        run(threads, depth, ops / 10);
+
+        long nanos = run(threads, depth, ops);
+        System.out.println("threads = " + threads + ", depth = " + depth + ", ops/thread = " + ops);
+        System.out.printf("%.2f ns per operation, %.2f ns per lock/unlock pair%n",
+                          (double) nanos / ops, (double) nanos / ops / depth);
+    }
+
+    /**
+     * Runs ops operations on each of threads threads and returns the
+     * slowest thread's elapsed time.
+     */
+    static long run(int threads, int depth, long ops) throws InterruptedException {
+        long[] elapsed = new long[threads];
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] ts = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final int id = i;
+            ts[i] = new Thread(() -> {
+                ReentrantLock lock = new ReentrantLock();
+                long sink = 0;
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long t0 = System.nanoTime();
+                for (long k = 0; k < ops; k++) {
+                    for (int d = 0; d < depth; d++)
+                        lock.lock();
+                    sink += lock.getHoldCount();
+                    for (int d = 0; d < depth; d++)
+                        lock.unlock();
+                }
+                elapsed[id] = System.nanoTime() - t0;
+                //防止JIT把整个循环优化掉
+                if (sink != ops * depth)
+                    throw new AssertionError(sink);
+            }, "reentry-" + i);
+            ts[i].start();
+        }
+        start.countDown();
+        long max = 0;
+        for (int i = 0; i < threads; i++) {
+            ts[i].join();
+            max = Math.max(max, elapsed[i]);
+        }
+        return max;
+    }
+}
@@ -0,0 +1,169 @@
+package com.xiaoliu.niubility;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.AbstractQueuedSynchronizer;
+
+/**
+ * Interrupts condition waiters while signalAll moves them to the sync
+ * queue. signalAll links the signalled nodes into a chain and splices
+ * it in with one tail CAS, so an interrupted waiter can find its node
+ * already signalled but not yet on the queue. It must then wait for
+ * the splice in transferAfterCancelledWait, not go ahead as if it were
+ * queued.
+ *
+ * <p>The signaller interrupts random waiters right before and right
+ * after signalAll while it holds the lock, and another thread
+ * interrupts them at random. Every waiter checks that it owns the
+ * lock whenever await returns or throws, and that nobody else is
+ * inside. The run fails if a check fails, if a waiter does not finish
+ * by the deadline, or if the sync queue is not empty at the end.
+ *
+ * signalAll 的同时中断等待线程：被唤醒的节点先在条件队列外串成链表，再一次CAS拼到阻塞队列队尾，
+ * 中断的线程可能看到自己已经被signal、但还没拼到阻塞队列上。
+ * 每次await返回或抛异常都检查自己持有锁、没有别的线程在里面；超时没结束或者最后阻塞队列不空都算失败。
+ *
+ * <p>Like {@link SpareNodeStress}, it needs the copy in this directory
+ * moved into an ordinary package, with the import pointed at it.
+ *
+ * Usage: SignalAllStress [seconds]
+ */
+public class SignalAllStress {
+
+    static final int WAITERS = 16;
+    static final long DEADLINE_SLACK_SECONDS = 60L;
+
+    /** Non-reentrant lock that knows its owner. */
+    static final class Mutex extends AbstractQueuedSynchronizer {
+        protected boolean tryAcquire(int acquires) {
+            if (compareAndSetState(0, acquires)) {
+                setExclusiveOwnerThread(Thread.currentThread());
+                return true;
+            }
+            return false;
+        }
+
+        protected boolean tryRelease(int releases) {
+            if (getExclusiveOwnerThread() != Thread.currentThread())
+                throw new IllegalMonitorStateException();
+            setExclusiveOwnerThread(null);
+            setState(0);
+            return true;
+        }
+
+        protected boolean isHeldExclusively() {
+            return getExclusiveOwnerThread() == Thread.currentThread();
+        }
+
+        ConditionObject newCondition() {
+            return new ConditionObject();
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        long seconds = (args.length > 0) ? Long.parseLong(args[0]) : 10L;
+        Mutex lock = new Mutex();
+        AbstractQueuedSynchronizer.ConditionObject cond = lock.newCondition();
+        AtomicInteger inside = new AtomicInteger();
+        AtomicInteger violations = new AtomicInteger();
+        AtomicLong wakeups = new AtomicLong(), interrupts = new AtomicLong(),
+            signals = new AtomicLong();
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        long deadline = end + TimeUnit.SECONDS.toNanos(DEADLINE_SLACK_SECONDS);
+
+        Thread[] waiters = new Thread[WAITERS];
+        for (int i = 0; i < WAITERS; i++) {
+            final boolean timed = (i & 1) != 0;
+            waiters[i] = new Thread(() -> {
+                while (System.nanoTime() - end < 0L) {
+                    lock.acquire(1);
+                    if (inside.incrementAndGet() != 1)
+                        violations.incrementAndGet();
+                    inside.decrementAndGet();
+                    try {
+                        if (timed)
+                            cond.awaitNanos(TimeUnit.MILLISECONDS.toNanos(1));
+                        else
+                            cond.await();
+                        wakeups.incrementAndGet();
+                    } catch (InterruptedException e) {
+                        interrupts.incrementAndGet();
+                    } finally {
+                        //await 无论正常返回还是抛异常，都必须重新持有锁
+                        if (!lock.isHeldExclusively())
+                            violations.incrementAndGet();
+                        if (inside.incrementAndGet() != 1)
+                            violations.incrementAndGet();
+                        inside.decrementAndGet();
+                        lock.release(1);
+                    }
+                }
+                Thread.interrupted();
+            }, "waiter-" + i);
+            waiters[i].start();
+        }
+
+        Thread signaller = new Thread(() -> {
+            ThreadLocalRandom rnd = ThreadLocalRandom.current();
+            //结束之后继续signal，直到所有等待线程都退出
+            while (anyAlive(waiters) && System.nanoTime() - deadline < 0L) {
+                lock.acquire(1);
+                try {
+                    waiters[rnd.nextInt(WAITERS)].interrupt();
+                    cond.signalAll();
+                    waiters[rnd.nextInt(WAITERS)].interrupt();
+                    signals.incrementAndGet();
+                } finally {
+                    lock.release(1);
+                }
+                Thread.yield();
+            }
+        }, "signaller");
+        signaller.start();
+
+        Thread chaos = new Thread(() -> {
+            ThreadLocalRandom rnd = ThreadLocalRandom.current();
+            while (System.nanoTime() - end < 0L) {
+                waiters[rnd.nextInt(WAITERS)].interrupt();
+                try {
+                    TimeUnit.MICROSECONDS.sleep(100 + rnd.nextInt(400));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "interrupter");
+        chaos.start();
+
+        boolean ok = true;
+        for (Thread t : waiters) {
+            long left = deadline - System.nanoTime();
+            if (left > 0L)
+                TimeUnit.NANOSECONDS.timedJoin(t, left);
+            if (t.isAlive()) {
+                System.out.println(t.getName() + " never finished: " + t.getState());
+                ok = false;
+            }
+        }
+        signaller.join();
+        chaos.join();
+        if (ok && lock.hasQueuedThreads()) {
+            System.out.println(lock.getQueueLength() + " threads still queued");
+            ok = false;
+        }
+        System.out.println(signals + " signalAlls, " + wakeups + " wakeups, " +
+                           interrupts + " interrupts, " + violations + " violations");
+        ok &= violations.get() == 0;
+        System.out.println(ok ? "ok" : "FAILED");
+        if (!ok)
+            System.exit(1);
+    }
+
+    static boolean anyAlive(Thread[] ts) {
+        for (Thread t : ts)
+            if (t.isAlive())
+                return true;
+        return false;
+    }
+}
@@ -0,0 +1,274 @@
+package com.xiaoliu.niubility;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.AbstractQueuedSynchronizer;
+
+/**
+ * Stresses node recycling in the annotated AQS on the paths where a
+ * node leaves the queue without becoming head: priority mode, where a
+ * chosen waiter acquires from behind head.next and leaves through
+ * leaveQueue, and shared fan-out, where woken waiters leave through
+ * leaveFanOut. Timeouts and interrupts add cancelled nodes to both.
+ *
+ * <p>If a recycled head resurfaced while a stale node still pointed
+ * at it, a waiter could link behind a node that is behind itself.
+ * That shows up as two threads inside the mutex, a waiter that is
+ * never woken (the run does not finish before the deadline), or a
+ * prev cycle, which makes the final getQueueLength walk spin forever
+ * and is caught by the same deadline. Two mutexes share the threads,
+ * so a node recycled on one synchronizer and touched through the
+ * other would show up too.
+ *
+ * 节点复用的压力测试：优先级模式下被选中的节点从队列中间抢锁、走leaveQueue离开；
+ * 树形唤醒时被唤醒的节点走leaveFanOut离开；再加上超时和中断产生的取消节点。
+ * 如果复用的老head被过期的节点指回来，会表现为两个线程同时持锁、有线程永远没被唤醒（超时），
+ * 或者prev成环（最后的 getQueueLength 死循环，同样会超时）。
+ *
+ * <p>The class needs the copy in this directory, not the JDK's AQS:
+ * move the copy into an ordinary package as described in
+ * {@link ReentrantLockReentryBenchmark} and point the import at it.
+ *
+ * Usage: SpareNodeStress [seconds per phase]
+ */
+public class SpareNodeStress {
+
+    static final int THREADS = 8;
+    static final long DEADLINE_SLACK_SECONDS = 60L;
+
+    /** Exclusive lock in priority mode. */
+    static final class Mutex extends AbstractQueuedSynchronizer {
+        Mutex() {
+            setPriorityQueueing(true);
+        }
+
+        protected boolean tryAcquire(int acquires) {
+            return compareAndSetState(0, 1);
+        }
+
+        protected boolean tryRelease(int releases) {
+            setState(0);
+            return true;
+        }
+    }
+
+    /** Reusable gate whose opening fans out to all waiters. */
+    static final class Gate extends AbstractQueuedSynchronizer {
+        Gate() {
+            setSharedWakeFanOut(true);
+        }
+
+        protected int tryAcquireShared(int acquires) {
+            return (getState() != 0) ? 1 : -1;
+        }
+
+        protected boolean tryReleaseShared(int releases) {
+            setState(1);
+            return true;
+        }
+
+        void close() {
+            setState(0);
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        long seconds = (args.length > 0) ? Long.parseLong(args[0]) : 10L;
+        boolean ok = exclusive(seconds);
+        System.out.println("exclusive: " + (ok ? "ok" : "FAILED"));
+        boolean ok2 = shared(seconds);
+        System.out.println("shared: " + (ok2 ? "ok" : "FAILED"));
+        if (!ok || !ok2)
+            System.exit(1);
+    }
+
+    /**
+     * THREADS threads take two priority-mode mutexes with random
+     * priorities, timeouts and interrupts, checking mutual exclusion.
+     */
+    static boolean exclusive(long seconds) throws InterruptedException {
+        Mutex[] locks = { new Mutex(), new Mutex() };
+        AtomicInteger[] inside = { new AtomicInteger(), new AtomicInteger() };
+        AtomicLong acquires = new AtomicLong(), timeouts = new AtomicLong(),
+            interrupts = new AtomicLong();
+        AtomicInteger violations = new AtomicInteger();
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        Thread[] ts = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            ts[i] = new Thread(() -> {
+                ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                while (System.nanoTime() - end < 0L) {
+                    int k = rnd.nextInt(2);
+                    Mutex m = locks[k];
+                    try {
+                        switch (rnd.nextInt(3)) {
+                            case 0:
+                                m.acquire(1, rnd.nextInt(4));
+                                break;
+                            case 1:
+                                if (!m.tryAcquireNanos(1, rnd.nextInt(50_000))) {
+                                    timeouts.incrementAndGet();
+                                    continue;
+                                }
+                                break;
+                            default:
+                                m.acquireInterruptibly(1);
+                                break;
+                        }
+                    } catch (InterruptedException e) {
+                        interrupts.incrementAndGet();
+                        continue;
+                    }
+                    //同一时刻只能有一个线程在里面
+                    if (inside[k].incrementAndGet() != 1)
+                        violations.incrementAndGet();
+                    if (rnd.nextInt(8) == 0)
+                        Thread.yield();
+                    inside[k].decrementAndGet();
+                    acquires.incrementAndGet();
+                    m.release(1);
+                }
+                //acquire(1, priority) 吞掉的中断不要带出去
+                Thread.interrupted();
+            }, "exclusive-" + i);
+            ts[i].start();
+        }
+        Thread chaos = interrupter(ts, end);
+        boolean done = joinAll(ts, end);
+        chaos.join();
+        boolean drained = done && drained(locks[0]) && drained(locks[1]);
+        System.out.println("  " + acquires + " acquires, " + timeouts + " timeouts, " +
+                           interrupts + " interrupts, " + violations + " violations");
+        return done && drained && violations.get() == 0;
+    }
+
+    /**
+     * THREADS threads pass a fan-out gate once per round, some of them
+     * with timed waits that cancel and retry.
+     */
+    static boolean shared(long seconds) throws InterruptedException {
+        Gate gate = new Gate();
+        AtomicInteger passed = new AtomicInteger();
+        AtomicLong timeouts = new AtomicLong();
+        AtomicInteger roundNo = new AtomicInteger();
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        long deadline = end + TimeUnit.SECONDS.toNanos(DEADLINE_SLACK_SECONDS);
+        Thread[] ts = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            final boolean timed = (i & 1) != 0;
+            ts[i] = new Thread(() -> {
+                int seen = 0;
+                for (;;) {
+                    //等控制线程开始新的一轮
+                    int r;
+                    while ((r = roundNo.get()) == seen) {
+                        if (System.nanoTime() - deadline >= 0L)
+                            return;
+                        Thread.yield();
+                    }
+                    if (r < 0)
+                        return;
+                    seen = r;
+                    try {
+                        if (timed) {
+                            while (!gate.tryAcquireSharedNanos(1, 20_000))
+                                timeouts.incrementAndGet();
+                        } else {
+                            gate.acquireSharedInterruptibly(1);
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    passed.incrementAndGet();
+                }
+            }, "shared-" + i);
+            ts[i].start();
+        }
+        boolean ok = true;
+        int rounds = 0;
+        while (System.nanoTime() - end < 0L) {
+            gate.close();
+            roundNo.set(++rounds);
+            //等一部分线程排进队列再开门，让树形唤醒有东西可唤醒
+            long spinUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(1);
+            while (gate.getQueueLength() < THREADS / 2 && System.nanoTime() - spinUntil < 0L)
+                Thread.yield();
+            gate.releaseShared(1);
+            while (passed.get() < rounds * THREADS) {
+                if (System.nanoTime() - deadline >= 0L) {
+                    System.out.println("  round " + rounds + ": only " +
+                                       (passed.get() - (rounds - 1) * THREADS) +
+                                       " of " + THREADS + " passed");
+                    ok = false;
+                    break;
+                }
+                Thread.yield();
+            }
+            if (!ok)
+                break;
+        }
+        roundNo.set(-1);
+        for (Thread t : ts)
+            t.interrupt();
+        ok = joinAll(ts, deadline) && ok;
+        ok = ok && drained(gate);
+        System.out.println("  " + rounds + " rounds, " + passed + " passes, " +
+                           timeouts + " timeouts");
+        return ok;
+    }
+
+    /** Interrupts a random thread now and then until end. */
+    static Thread interrupter(Thread[] ts, long end) {
+        Thread chaos = new Thread(() -> {
+            ThreadLocalRandom rnd = ThreadLocalRandom.current();
+            while (System.nanoTime() - end < 0L) {
+                ts[rnd.nextInt(ts.length)].interrupt();
+                try {
+                    TimeUnit.MICROSECONDS.sleep(200 + rnd.nextInt(800));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "interrupter");
+        chaos.start();
+        return chaos;
+    }
+
+    /** Joins ts, giving up DEADLINE_SLACK_SECONDS after end. */
+    static boolean joinAll(Thread[] ts, long end) throws InterruptedException {
+        long deadline = end + TimeUnit.SECONDS.toNanos(DEADLINE_SLACK_SECONDS);
+        for (Thread t : ts) {
+            long left = deadline - System.nanoTime();
+            if (left > 0L)
+                TimeUnit.NANOSECONDS.timedJoin(t, left);
+            if (t.isAlive()) {
+                System.out.println("  " + t.getName() + " never finished: " + t.getState());
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks that s has no queued threads left. The length is counted
+     * on another thread, since a prev cycle would never end the walk.
+     */
+    static boolean drained(AbstractQueuedSynchronizer s) throws InterruptedException {
+        int[] len = { -1 };
+        Thread walker = new Thread(() -> len[0] = s.getQueueLength(), "walker");
+        walker.setDaemon(true);
+        walker.start();
+        walker.join(TimeUnit.SECONDS.toMillis(DEADLINE_SLACK_SECONDS));
+        if (walker.isAlive()) {
+            System.out.println("  queue walk did not end: prev cycle");
+            return false;
+        }
+        if (len[0] != 0 || s.hasQueuedThreads()) {
+            System.out.println("  " + len[0] + " threads still queued");
+            return false;
+        }
+        return true;
+    }
+}
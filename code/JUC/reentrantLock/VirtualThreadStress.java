@@ -0,0 +1,167 @@
+package com.xiaoliu.niubility;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parks a large number of virtual threads (default one million) on
+ * {@link MiniReentrantLock} and on a {@link CountDownLatch} and checks
+ * that they all get in line and all come out.
+ *
+ * <p>The point is pinning. A virtual thread that parks while pinned
+ * keeps its carrier, and there are only as many carriers as CPUs.
+ * A waiter's state is WAITING inside LockSupport.park whether it is
+ * pinned or not, so the state check below cannot tell the two apart.
+ * Pinning shows up only indirectly: once the pinned waiters hold
+ * every carrier, the remaining virtual threads never get mounted,
+ * stay RUNNABLE, and the "parked" phase times out. For a direct
+ * report, run with -Djdk.tracePinnedThreads=full. If every waiter
+ * gets parked, parking unmounted them, and the heap delta per waiter
+ * is roughly the waiter's queue node plus its parked stack.
+ *
+ * <p>Neither test exercises the annotated AQS in this directory.
+ * MiniReentrantLock has its own queue and is not built on AQS, and
+ * the latch is the JDK's {@code java.util.concurrent} CountDownLatch,
+ * i.e. the JDK's own AQS: the annotated copy replaces a
+ * {@code java.base} class and cannot be loaded by an ordinary run.
+ * The copy's virtual-thread changes (no monitors on the park paths,
+ * nothing but the Node retained across a park) are therefore not
+ * covered here.
+ *
+ * 用虚拟线程压测：100万个虚拟线程挂起在MiniReentrantLock / CountDownLatch 上。
+ * 钉住载体线程的park也是WAITING状态，这里的状态检查分不出来；只能间接发现：
+ * 载体线程被钉住的线程占满后，剩下的虚拟线程一直没机会运行，等待挂起的阶段会超时。
+ * 想直接看到钉住的位置，加 -Djdk.tracePinnedThreads=full。
+ * 注意：两个测试都没有用到本目录里注释过的AQS副本。MiniReentrantLock 是自己实现的队列，
+ * CountDownLatch 用的是JDK自带的。AQS副本针对虚拟线程的修改没有经过这个测试验证。
+ *
+ * Needs JDK 21+.
+ */
+public class VirtualThreadStress {
+
+    static final long TIMEOUT_SECONDS = 120L;
+
+    public static void main(String[] args) throws InterruptedException {
+        int n = (args.length > 0) ? Integer.parseInt(args[0]) : 1_000_000;
+        System.out.println("MiniReentrantLock: " + (lockStress(n) ? "ok" : "FAILED"));
+        System.out.println("CountDownLatch: " + (latchStress(n) ? "ok" : "FAILED"));
+    }
+
+    /**
+     * Holds the lock while n virtual threads park on it, then lets
+     * them through one by one.
+     */
+    static boolean lockStress(int n) throws InterruptedException {
+        MiniReentrantLock lock = new MiniReentrantLock();
+        CountDownLatch done = new CountDownLatch(n);
+        long[] counter = new long[1];
+        Thread[] waiters = new Thread[n];
+
+        long before = usedHeap();
+        lock.lock();
+        boolean held = true;
+        try {
+            for (int i = 0; i < n; i++) {
+                waiters[i] = Thread.ofVirtual().start(() -> {
+                    lock.lock();
+                    try {
+                        counter[0]++;
+                    } finally {
+                        lock.unlock();
+                    }
+                    done.countDown();
+                });
+            }
+            //全部线程都挂起了，才释放锁
+            int parked = awaitParked(waiters);
+            if (parked < n) {
+                System.out.println("only " + parked + " of " + n + " parked");
+                return false;
+            }
+            report("lock", n, before);
+            held = false;
+            lock.unlock();
+            if (!done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                System.out.println("only " + (n - done.getCount()) + " of " + n + " acquired");
+                return false;
+            }
+        } finally {
+            //失败提前返回时也要释放锁，否则所有虚拟线程永远挂着
+            if (held)
+                lock.unlock();
+        }
+        return counter[0] == n;
+    }
+
+    /**
+     * Parks n virtual threads on an unopened latch, then opens it.
+     */
+    static boolean latchStress(int n) throws InterruptedException {
+        CountDownLatch gate = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(n);
+        Thread[] waiters = new Thread[n];
+
+        long before = usedHeap();
+        try {
+            for (int i = 0; i < n; i++) {
+                waiters[i] = Thread.ofVirtual().start(() -> {
+                    try {
+                        gate.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    done.countDown();
+                });
+            }
+            int parked = awaitParked(waiters);
+            if (parked < n) {
+                System.out.println("only " + parked + " of " + n + " parked");
+                return false;
+            }
+            report("latch", n, before);
+            gate.countDown();
+            return done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } finally {
+            gate.countDown();
+        }
+    }
+
+    /**
+     * Waits up to TIMEOUT_SECONDS for every thread to be parked and
+     * returns how many are. A virtual thread that has not run yet is
+     * RUNNABLE, and one blocked on a monitor is BLOCKED, so WAITING
+     * means it is inside LockSupport.park, pinned or not.
+     */
+    static int awaitParked(Thread[] threads) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        int i = 0;
+        while (i < threads.length) {
+            if (threads[i].getState() == Thread.State.WAITING) {
+                i++;
+            } else if (System.nanoTime() - deadline >= 0L) {
+                break;
+            } else {
+                Thread.sleep(10L);
+            }
+        }
+        //超时了，把剩下已经挂起的也数上
+        int parked = i;
+        for (int j = i + 1; j < threads.length; j++) {
+            if (threads[j].getState() == Thread.State.WAITING)
+                parked++;
+        }
+        return parked;
+    }
+
+    static void report(String what, int n, long before) {
+        long delta = usedHeap() - before;
+        System.out.println(what + ": " + n + " waiters parked, ~" +
+                           (delta / n) + " bytes of heap per waiter");
+    }
+
+    static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        System.gc();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
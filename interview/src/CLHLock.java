@@ -0,0 +1,64 @@
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * CLH锁：每个线程入队时拿到前驱节点，自旋前驱节点的 locked，前驱解锁时把自己的 locked 改成false。
+ * 和MCS一样每个线程自旋的是不同的节点，先来先得；不需要next指针，解锁只要一次写。
+ * AQS的阻塞队列就是CLH队列的变种。
+ */
+public class CLHLock implements MyLock {
+
+    //填充的做法同 MCSLock.QNode：前填充、locked、后填充分三层类声明，填充用 byte，
+    //locked 前后都隔着64字节
+    abstract static class QNodeLhsPad {
+        byte p00, p01, p02, p03, p04, p05, p06, p07, p08, p09, p10, p11, p12, p13, p14, p15;
+        byte p16, p17, p18, p19, p20, p21, p22, p23, p24, p25, p26, p27, p28, p29, p30, p31;
+        byte p32, p33, p34, p35, p36, p37, p38, p39, p40, p41, p42, p43, p44, p45, p46, p47;
+        byte p48, p49, p50, p51, p52, p53, p54, p55, p56, p57, p58, p59, p60, p61, p62, p63;
+    }
+
+    abstract static class QNodeFields extends QNodeLhsPad {
+        //true 持有锁或者在等锁，后继线程要等它变成false
+        volatile boolean locked;
+    }
+
+    abstract static class QNodeRhsPad extends QNodeFields {
+        byte p64, p65, p66, p67, p68, p69, p70, p71, p72, p73, p74, p75, p76, p77, p78, p79;
+        byte p80, p81, p82, p83, p84, p85, p86, p87, p88, p89, p90, p91, p92, p93, p94, p95;
+        byte p96, p97, p98, p99, p100, p101, p102, p103, p104, p105, p106, p107, p108, p109, p110, p111;
+        byte p112, p113, p114, p115, p116, p117, p118, p119, p120, p121, p122, p123, p124, p125, p126, p127;
+    }
+
+    static final class QNode extends QNodeRhsPad {
+    }
+
+    //队尾，初始是一个已经解锁的节点
+    private final AtomicReference<QNode> tail = new AtomicReference<>(new QNode());
+
+    //当前线程的节点
+    private final ThreadLocal<QNode> myNode = ThreadLocal.withInitial(QNode::new);
+    //当前线程的前驱节点
+    private final ThreadLocal<QNode> myPred = new ThreadLocal<>();
+
+    public static void main(String[] args) throws InterruptedException {
+        System.out.println("count = " + LockDemo.run(new CLHLock(), LockDemo.THREADS, 100000));
+    }
+
+    @Override
+    public void myLock() {
+        QNode node = myNode.get();
+        node.locked = true;
+        QNode pred = tail.getAndSet(node);
+        myPred.set(pred);
+        while (pred.locked) {
+            Thread.onSpinWait();
+        }
+    }
+
+    @Override
+    public void myUnlock() {
+        QNode node = myNode.get();
+        node.locked = false;
+        //自己的节点可能还在被后继线程自旋，不能再用；前驱节点已经没人看了，下次加锁用它
+        myNode.set(myPred.get());
+    }
+}
@@ -0,0 +1,34 @@
+/**
+ * 几个线程用同一把锁对计数器加1，返回最后的计数，不等于 threads * times 说明锁有问题
+ */
+public class LockDemo {
+
+    //线程数不要超过CPU个数：排队自旋锁是先来先得的，排在前面的线程如果没有被调度，
+    //后面的线程只能一直空转，要等一个时间片才能交接一次锁
+    static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+    public static long run(MyLock lock, int threads, int times) throws InterruptedException {
+        long[] count = new long[1];
+        Thread[] ts = new Thread[threads];
+        long start = System.nanoTime();
+        for (int i = 0; i < threads; i++) {
+            ts[i] = new Thread(() -> {
+                for (int k = 0; k < times; k++) {
+                    lock.myLock();
+                    try {
+                        count[0]++;
+                    } finally {
+                        lock.myUnlock();
+                    }
+                }
+            }, "t" + i);
+            ts[i].start();
+        }
+        for (Thread t : ts) {
+            t.join();
+        }
+        System.out.println(lock.getClass().getSimpleName() + ": " + threads + " threads, "
+                + (System.nanoTime() - start) / 1000000 + "ms");
+        return count[0];
+    }
+}
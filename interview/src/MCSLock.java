@@ -0,0 +1,78 @@
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * MCS锁：等待的线程组成一个链表，每个线程自旋自己节点上的 locked，
+ * 解锁时持锁线程把后继节点的 locked 改成false，只有后继线程的缓存行失效。
+ * 先来先得；线程再多，每次交接锁也只有一次缓存行传递。
+ */
+public class MCSLock implements MyLock {
+
+    //JVM 先排父类的字段，再排子类的字段；同一个类里 long 会排在 boolean、引用前面，
+    //所以填充写在同一个类的末尾并不在后面。前填充、locked/next、后填充分三层类声明。
+    //填充用 byte 不用 long：JDK 15 之后子类的字段会填进父类留下的空隙（比如对象头后面的4个字节），
+    //long 对齐会留空隙，byte 不会。locked 前后都隔着64字节，和别的对象的字段不会落在同一个缓存行
+    abstract static class QNodeLhsPad {
+        byte p00, p01, p02, p03, p04, p05, p06, p07, p08, p09, p10, p11, p12, p13, p14, p15;
+        byte p16, p17, p18, p19, p20, p21, p22, p23, p24, p25, p26, p27, p28, p29, p30, p31;
+        byte p32, p33, p34, p35, p36, p37, p38, p39, p40, p41, p42, p43, p44, p45, p46, p47;
+        byte p48, p49, p50, p51, p52, p53, p54, p55, p56, p57, p58, p59, p60, p61, p62, p63;
+    }
+
+    abstract static class QNodeFields extends QNodeLhsPad {
+        //true 还在等
+        volatile boolean locked;
+        //后继节点，后继入队后自己设置
+        volatile QNode next;
+    }
+
+    abstract static class QNodeRhsPad extends QNodeFields {
+        byte p64, p65, p66, p67, p68, p69, p70, p71, p72, p73, p74, p75, p76, p77, p78, p79;
+        byte p80, p81, p82, p83, p84, p85, p86, p87, p88, p89, p90, p91, p92, p93, p94, p95;
+        byte p96, p97, p98, p99, p100, p101, p102, p103, p104, p105, p106, p107, p108, p109, p110, p111;
+        byte p112, p113, p114, p115, p116, p117, p118, p119, p120, p121, p122, p123, p124, p125, p126, p127;
+    }
+
+    static final class QNode extends QNodeRhsPad {
+    }
+
+    //队尾，没有线程持锁时为null
+    private final AtomicReference<QNode> tail = new AtomicReference<>();
+
+    //每个线程一个节点，解锁之后可以重复使用
+    private final ThreadLocal<QNode> myNode = ThreadLocal.withInitial(QNode::new);
+
+    public static void main(String[] args) throws InterruptedException {
+        System.out.println("count = " + LockDemo.run(new MCSLock(), LockDemo.THREADS, 100000));
+    }
+
+    @Override
+    public void myLock() {
+        QNode node = myNode.get();
+        node.next = null;
+        node.locked = true;
+        QNode pred = tail.getAndSet(node);
+        //前面有人：挂到前驱后面，自旋自己的节点，等前驱解锁时通知
+        if (pred != null) {
+            pred.next = node;
+            while (node.locked) {
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    @Override
+    public void myUnlock() {
+        QNode node = myNode.get();
+        if (node.next == null) {
+            //没有后继：把tail改回null就解锁了
+            if (tail.compareAndSet(node, null)) {
+                return;
+            }
+            //CAS失败说明有线程刚刚 getAndSet 了tail，还没来得及设置 node.next，等它设置
+            while (node.next == null) {
+                Thread.onSpinWait();
+            }
+        }
+        node.next.locked = false;
+    }
+}
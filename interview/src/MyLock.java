@@ -0,0 +1,10 @@
+/**
+ * SpinLock、TicketLock、MCSLock、CLHLock 共用的加锁/解锁接口
+ * 都不可重入，myUnlock 只能由加锁的线程调用
+ */
+public interface MyLock {
+
+    void myLock();
+
+    void myUnlock();
+}
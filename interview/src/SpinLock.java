@@ -1,34 +1,170 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
-public class SpinLock {
+public class SpinLock implements MyLock {
+
+    /**
+     * 抢不到锁时怎么等：
+     * SPIN            一直CAS。每次CAS失败都会让其它自旋线程的缓存行失效
+     * TTAS            先读，看到锁空闲了再CAS（test-and-test-and-set），等待时只读本地缓存
+     * BACKOFF         TTAS + 指数退避：CAS失败后随机等一段时间，每失败一次上限翻倍
+     * SPIN_THEN_YIELD 自旋一段时间还抢不到，每轮让出CPU
+     * SPIN_THEN_PARK  自旋一段时间还抢不到，挂起线程，解锁时唤醒。持锁线程会sleep的时候用这个，不浪费CPU
+     */
+    public enum WaitStrategy {
+        SPIN, TTAS, BACKOFF, SPIN_THEN_YIELD, SPIN_THEN_PARK
+    }
+
+    //SPIN_THEN_YIELD / SPIN_THEN_PARK 先自旋多少次
+    static final int SPINS = 1 << 10;
+    //BACKOFF 退避的上限（onSpinWait 次数）
+    static final int MAX_BACKOFF = 1 << 10;
 
     AtomicReference<Thread> atomicReference = new AtomicReference<>();
 
+    private final WaitStrategy strategy;
+
+    //SPIN_THEN_PARK 挂起的线程
+    private final ConcurrentLinkedQueue<Thread> parked = new ConcurrentLinkedQueue<>();
+
+    //默认和原来一样一直CAS
+    public SpinLock() {
+        this(WaitStrategy.SPIN);
+    }
+
+    public SpinLock(WaitStrategy strategy) {
+        this.strategy = strategy;
+    }
+
     public static void main(String[] args) {
 
-        SpinLock spinLock = new SpinLock();
+        //t1 拿着锁睡5秒，t2 自旋一会儿就挂起，不会空转5秒
+        SpinLock spinLock = new SpinLock(WaitStrategy.SPIN_THEN_PARK);
         new Thread(()->{
+            System.out.println(Thread.currentThread().getName() + "尝试抢占锁……");
             spinLock.myLock();
+            System.out.println(Thread.currentThread().getName() + "抢占锁成功");
             try { TimeUnit.SECONDS.sleep(5);} catch (InterruptedException e) {e.printStackTrace();}
             spinLock.myUnlock();
+            System.out.println(Thread.currentThread().getName() + "释放锁成功");
         },"t1").start();
 
         new Thread(()->{
+            System.out.println(Thread.currentThread().getName() + "尝试抢占锁……");
             spinLock.myLock();
+            System.out.println(Thread.currentThread().getName() + "抢占锁成功");
             spinLock.myUnlock();
+            System.out.println(Thread.currentThread().getName() + "释放锁成功");
         },"t2").start();
     }
 
+    //加锁、解锁路径上不打印：println 本身要加锁，会把锁的开销淹没掉
+
+    @Override
     public void myLock() {
-        System.out.println(Thread.currentThread().getName() + "尝试抢占锁……");
-        while (!atomicReference.compareAndSet(null, Thread.currentThread())) {
+        Thread current = Thread.currentThread();
+        switch (strategy) {
+            case SPIN:
+                while (!atomicReference.compareAndSet(null, current)) {
+                }
+                break;
+            case TTAS:
+                ttas(current);
+                break;
+            case BACKOFF:
+                backoff(current);
+                break;
+            case SPIN_THEN_YIELD:
+                spinThenYield(current);
+                break;
+            case SPIN_THEN_PARK:
+                spinThenPark(current);
+                break;
         }
-        System.out.println(Thread.currentThread().getName() + "抢占锁成功");
     }
 
+    @Override
     public void myUnlock() {
         atomicReference.compareAndSet(Thread.currentThread(), null);
-        System.out.println(Thread.currentThread().getName() + "释放锁成功");
+        if (strategy == WaitStrategy.SPIN_THEN_PARK) {
+            //唤醒一个挂起的线程，它醒来后自己重新抢锁
+            Thread t = parked.peek();
+            if (t != null) {
+                LockSupport.unpark(t);
+            }
+        }
+    }
+
+    /**
+     * 锁被占用时只读不写，读的是自己CPU缓存里的副本，不产生总线流量；看到锁释放了才去CAS
+     */
+    private void ttas(Thread current) {
+        for (;;) {
+            while (atomicReference.get() != null) {
+                Thread.onSpinWait();
+            }
+            if (atomicReference.compareAndSet(null, current)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 锁释放的瞬间所有线程同时CAS，只有一个能成功。失败的线程随机等一会儿再试，
+     * 错开下一次CAS，每失败一次等待上限翻倍
+     */
+    private void backoff(Thread current) {
+        int limit = 1;
+        for (;;) {
+            if (atomicReference.get() == null && atomicReference.compareAndSet(null, current)) {
+                return;
+            }
+            for (int i = ThreadLocalRandom.current().nextInt(limit) + 1; i > 0; i--) {
+                Thread.onSpinWait();
+            }
+            if (limit < MAX_BACKOFF) {
+                limit <<= 1;
+            }
+        }
+    }
+
+    /**
+     * 短时间持锁时自旋最快；自旋 SPINS 次还没抢到，说明持锁时间比较长，每轮让出CPU给其它线程
+     */
+    private void spinThenYield(Thread current) {
+        for (int spins = 0; ; spins++) {
+            if (atomicReference.get() == null && atomicReference.compareAndSet(null, current)) {
+                return;
+            }
+            if (spins < SPINS) {
+                Thread.onSpinWait();
+            } else {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * 自旋 SPINS 次还没抢到就挂起，不再占用CPU。
+     * 先把自己放进 parked 再检查一次锁：解锁线程是先释放锁再看 parked，
+     * 两边都是 volatile 操作，要么这里看到锁已经释放，要么解锁线程看到这里在等，唤醒不会丢。
+     * 挂起前只登记一次，抢到锁之后只移除一次：ConcurrentLinkedQueue.remove 要从头找，
+     * 每次醒来都 add/remove 一遍既要遍历又要分配节点。被唤醒了没抢到就接着挂起，还在队列里，不会漏掉下一次唤醒
+     */
+    private void spinThenPark(Thread current) {
+        for (int spins = 0; spins < SPINS; spins++) {
+            if (atomicReference.get() == null && atomicReference.compareAndSet(null, current)) {
+                return;
+            }
+            Thread.onSpinWait();
+        }
+        parked.add(current);
+        while (!atomicReference.compareAndSet(null, current)) {
+            LockSupport.park(this);
+        }
+        parked.remove(current);
     }
 }
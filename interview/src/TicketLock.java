@@ -0,0 +1,57 @@
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * 排队自旋锁：像银行取号，先取号（nextTicket），再等叫号（nowServing）叫到自己。
+ * 先来先得，公平；每个线程只CAS一次（getAndIncrement），不会像SpinLock那样反复CAS。
+ * 缺点：所有线程都在读同一个 nowServing，每次解锁都会让所有等待者的缓存行失效，
+ * 线程很多时还是不如 MCSLock、CLHLock。
+ */
+public class TicketLock implements MyLock {
+
+    //JVM 先排父类的字段，再排子类的字段：nextTicket、填充、nowServing 分三层类声明，顺序就固定了。
+    //类不能继承自己的嵌套类，所以两个计数器放在单独的 Counters 对象里
+    abstract static class Next {
+        //下一个要发的号
+        volatile int nextTicket;
+    }
+
+    //填充，让 nextTicket 和 nowServing 不在同一个缓存行：取号不会打扰正在等叫号的线程。
+    //用 byte 不用 long：long 对齐留下的空隙会被子类的 nowServing 填进去（JDK 15 之后的字段布局）
+    abstract static class Pad extends Next {
+        byte p00, p01, p02, p03, p04, p05, p06, p07, p08, p09, p10, p11, p12, p13, p14, p15;
+        byte p16, p17, p18, p19, p20, p21, p22, p23, p24, p25, p26, p27, p28, p29, p30, p31;
+        byte p32, p33, p34, p35, p36, p37, p38, p39, p40, p41, p42, p43, p44, p45, p46, p47;
+        byte p48, p49, p50, p51, p52, p53, p54, p55, p56, p57, p58, p59, p60, p61, p62, p63;
+    }
+
+    static final class Counters extends Pad {
+        //正在服务的号，只有持锁线程会修改
+        volatile int nowServing;
+    }
+
+    //nextTicket 是 Counters 的字段，不是单独的 AtomicInteger 对象，填充才有意义
+    private static final AtomicIntegerFieldUpdater<Next> NEXT_TICKET =
+            AtomicIntegerFieldUpdater.newUpdater(Next.class, "nextTicket");
+
+    private final Counters c = new Counters();
+
+    public static void main(String[] args) throws InterruptedException {
+        System.out.println("count = " + LockDemo.run(new TicketLock(), LockDemo.THREADS, 100000));
+    }
+
+    @Override
+    public void myLock() {
+        Counters c = this.c;
+        int myTicket = NEXT_TICKET.getAndIncrement(c);
+        while (c.nowServing != myTicket) {
+            Thread.onSpinWait();
+        }
+    }
+
+    @Override
+    public void myUnlock() {
+        //只有持锁线程会修改 nowServing，不需要CAS
+        Counters c = this.c;
+        c.nowServing = c.nowServing + 1;
+    }
+}